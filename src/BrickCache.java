@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Bounded cache of volume bricks with least recently used eviction. Missing
+ * bricks are loaded by the caller thread, prefetched bricks are loaded by the
+ * background threads. The same brick is never loaded twice at the same time
+ *
+ * @author s0s100
+ *
+ */
+
+public class BrickCache {
+	private static final int PREFETCH_THREADS = 2;
+
+	// Loads one brick from the disk
+	public interface BrickLoader {
+		short[] load(int bx, int by, int bz) throws IOException;
+	}
+
+	private final BrickLoader loader; // Reads bricks which are not in the cache
+	private final int capacity; // Max number of bricks in the cache
+	private final LinkedHashMap<Long, short[]> bricks; // Cached bricks in access order
+	private final Map<Long, FutureTask<short[]>> pending; // Bricks which are being loaded right now
+	private final ExecutorService prefetcher; // Threads which load prefetched bricks
+	private boolean closed; // Whether the prefetch threads are stopped
+
+	// Statistics of the cache usage
+	private long hits, misses, evictions, prefetches;
+
+	// Constructor which creates an empty cache with the following max number of bricks
+	public BrickCache(BrickLoader loader, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Cache capacity should be positive: " + capacity);
+		}
+
+		this.loader = loader;
+		this.capacity = capacity;
+		bricks = new LinkedHashMap<Long, short[]>(16, 0.75f, true);
+		pending = new HashMap<Long, FutureTask<short[]>>();
+		prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "Brick prefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Gets the brick, it is loaded by the current thread if it is not in the cache
+	public short[] getBrick(int bx, int by, int bz) {
+		long key = key(bx, by, bz);
+		FutureTask<short[]> task;
+
+		synchronized (this) {
+			short[] brick = bricks.get(key);
+			if (brick != null) {
+				hits++;
+				return brick;
+			}
+
+			// Use the task of the brick if it is queued or being loaded already
+			misses++;
+			task = pending.get(key);
+			if (task == null) {
+				task = createTask(bx, by, bz, key);
+			}
+		}
+
+		// Prefetch which is still queued is run by the current thread, so it doesn't wait behind the other prefetches.
+		// The run does nothing if the task has been started already
+		task.run();
+		return waitFor(task);
+	}
+
+	// Starts loading of the brick in the background if it is not in the cache, nothing is done after close
+	public void prefetch(int bx, int by, int bz) {
+		long key = key(bx, by, bz);
+
+		synchronized (this) {
+			if (closed || bricks.containsKey(key) || pending.containsKey(key)) {
+				return;
+			}
+			prefetches++;
+			prefetcher.execute(createTask(bx, by, bz, key));
+		}
+	}
+
+	// Creates the task which loads the brick and puts it into the cache, should be called with the lock
+	private FutureTask<short[]> createTask(int bx, int by, int bz, long key) {
+		FutureTask<short[]> task = new FutureTask<short[]>(() -> {
+			short[] brick = null;
+			try {
+				brick = loader.load(bx, by, bz);
+				return brick;
+			} finally {
+				put(key, brick);
+			}
+		});
+		pending.put(key, task);
+		return task;
+	}
+
+	// Puts loaded brick into the cache and removes the least recently used bricks
+	private synchronized void put(long key, short[] brick) {
+		pending.remove(key);
+		if (brick == null) {
+			return;
+		}
+
+		bricks.put(key, brick);
+		while (bricks.size() > capacity) {
+			Long eldest = bricks.keySet().iterator().next();
+			bricks.remove(eldest);
+			evictions++;
+		}
+	}
+
+	// Waits until the brick is loaded, disk errors are rethrown as unchecked
+	private static short[] waitFor(FutureTask<short[]> task) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw new UncheckedIOException((IOException) cause);
+			}
+			throw new IllegalStateException("Brick can't be loaded", cause);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// Key of the brick in the cache
+	private static long key(int bx, int by, int bz) {
+		return ((long) bz << 42) | ((long) by << 21) | bx;
+	}
+
+	// Stops the prefetch threads and cancels the bricks which are not loaded yet
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			for (FutureTask<short[]> task : pending.values()) {
+				task.cancel(false);
+			}
+			pending.clear();
+		}
+		prefetcher.shutdownNow();
+	}
+
+	/*
+	 * Statistics
+	 */
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getPrefetches() {
+		return prefetches;
+	}
+
+	// Part of the requests which were served from the cache
+	public synchronized double getHitRate() {
+		long requests = hits + misses;
+		return requests == 0 ? 0d : (double) hits / requests;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Brick cache: %d/%d bricks, hit rate %.1f%% (%d hits, %d misses), %d evictions, %d prefetches",
+				bricks.size(), capacity, getHitRate() * 100, hits, misses, evictions, prefetches);
+	}
+}
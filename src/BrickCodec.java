@@ -0,0 +1,87 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compression of one volume brick. Values are stored as differences from the
+ * previous value; runs of equal values (air) become one token. Tokens are
+ * variable length integers, so small differences take 1 byte:
+ * 
+ * <pre>
+ * (run length << 1) | 1  - previous value repeated run length times
+ * zigzag(difference) << 1 - next value is previous value + difference
+ * </pre>
+ * 
+ * @author s0s100
+ *
+ */
+
+public class BrickCodec {
+	private BrickCodec() {
+	}
+
+	// Encodes the first 'length' values
+	public static byte[] encode(short[] values, int length) {
+		byte[] result = new byte[Math.max(16, length / 2)];
+		int size = 0;
+		short previous = 0;
+		int i = 0;
+
+		while (i < length) {
+			int token;
+			if (values[i] == previous) {
+				// Count the run of the same values
+				int run = 1;
+				while (i + run < length && values[i + run] == previous) {
+					run++;
+				}
+				token = (run << 1) | 1;
+				i += run;
+			} else {
+				int difference = values[i] - previous;
+				token = ((difference << 1) ^ (difference >> 31)) << 1;
+				previous = values[i];
+				i++;
+			}
+
+			// Write the token 7 bits at a time, the highest bit tells that more bytes follow
+			if (size + 5 > result.length) {
+				result = Arrays.copyOf(result, result.length * 2);
+			}
+			while ((token & ~0x7f) != 0) {
+				result[size++] = (byte) ((token & 0x7f) | 0x80);
+				token >>>= 7;
+			}
+			result[size++] = (byte) token;
+		}
+
+		return Arrays.copyOf(result, size);
+	}
+
+	// Decodes 'length' values starting from the current buffer position
+	public static void decode(ByteBuffer in, short[] values, int length) {
+		short previous = 0;
+		int i = 0;
+
+		while (i < length) {
+			// Read the token
+			int token = 0;
+			int shift = 0;
+			byte next;
+			do {
+				next = in.get();
+				token |= (next & 0x7f) << shift;
+				shift += 7;
+			} while (next < 0);
+
+			if ((token & 1) != 0) {
+				int run = token >>> 1;
+				Arrays.fill(values, i, i + run, previous);
+				i += run;
+			} else {
+				int zigzag = token >>> 1;
+				previous = (short) (previous + ((zigzag >>> 1) ^ -(zigzag & 1)));
+				values[i++] = previous;
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+import java.io.File;
+import java.nio.ByteOrder;
+
+/**
+ * Reader of the CThead data set. The file has no header, it contains only
+ * 256x256x113 signed little endian 16 bit values
+ * 
+ * @author s0s100
+ *
+ */
+
+public class CTheadVolumeReader extends RawVolumeReader {
+	// Skull default size of the image
+	public static final int CT_X_AXIS = 256;// X axis length
+	public static final int CT_Y_AXIS = 256;// Y axis length
+	public static final int CT_Z_AXIS = 113;// Z axis length
+
+	private static final int BYTES_PER_VOXEL = 2;
+
+	// File has no header, so it is recognized only by its length
+	@Override
+	public boolean canRead(File file) {
+		return file.length() == (long) CT_X_AXIS * CT_Y_AXIS * CT_Z_AXIS * BYTES_PER_VOXEL;
+	}
+
+	@Override
+	public VolumeHeader readHeader(File file) {
+		return new VolumeHeader(CT_X_AXIS, CT_Y_AXIS, CT_Z_AXIS, BYTES_PER_VOXEL, true, ByteOrder.LITTLE_ENDIAN, file,
+				0);
+	}
+}
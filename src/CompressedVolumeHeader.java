@@ -0,0 +1,73 @@
+import java.io.File;
+import java.nio.ByteOrder;
+
+/**
+ * Header of the compressed volume data file (.vxz). Besides the volume size it
+ * contains the brick size and the position of every compressed brick, so any
+ * brick can be decoded without reading the others
+ * 
+ * @author s0s100
+ *
+ */
+
+public class CompressedVolumeHeader extends VolumeHeader {
+	private final int brickSize; // Side of the bricks
+	private final int bricksX, bricksY, bricksZ; // Number of bricks along every axis
+	private final long[] offsets; // Position of every brick in the file, the last one is the end of the data
+
+	// Constructor with all the information about the stored volume
+	public CompressedVolumeHeader(int sizeX, int sizeY, int sizeZ, int brickSize, File file, long[] offsets) {
+		super(sizeX, sizeY, sizeZ, 2, true, ByteOrder.LITTLE_ENDIAN, file, offsets[0]);
+		this.brickSize = brickSize;
+		bricksX = (sizeX + brickSize - 1) / brickSize;
+		bricksY = (sizeY + brickSize - 1) / brickSize;
+		bricksZ = (sizeZ + brickSize - 1) / brickSize;
+		this.offsets = offsets;
+	}
+
+	// Finds the number of the brick, bricks are stored X first, then Y and then Z
+	public int brickIndex(int bx, int by, int bz) {
+		return (bz * bricksY + by) * bricksX + bx;
+	}
+
+	// Position of the brick in the file
+	public long getBrickOffset(int brick) {
+		return offsets[brick];
+	}
+
+	// Length of the compressed brick
+	public int getBrickLength(int brick) {
+		return (int) (offsets[brick + 1] - offsets[brick]);
+	}
+
+	// Bricks are decoded as a whole, so slabs should contain whole brick layers
+	@Override
+	public int getSlabAlignment() {
+		return brickSize;
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public int getBrickSize() {
+		return brickSize;
+	}
+
+	public int getBricksX() {
+		return bricksX;
+	}
+
+	public int getBricksY() {
+		return bricksY;
+	}
+
+	public int getBricksZ() {
+		return bricksZ;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + String.format(", compressed %d bricks of %d", offsets.length - 1, brickSize);
+	}
+}
@@ -0,0 +1,155 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Reader of the compressed volume data files (.vxz) written by
+ * CompressedVolumeWriter. The file starts with the header and the table of
+ * brick positions, then every brick is compressed separately by BrickCodec:
+ * 
+ * <pre>
+ * int magic ("VXZ1"), sizeX, sizeY, sizeZ, brickSize, brickCount
+ * long offsets[brickCount + 1]
+ * byte bricks[]
+ * </pre>
+ * 
+ * Everything is little endian. Bricks of a slab are decoded in parallel
+ * 
+ * @author s0s100
+ *
+ */
+
+public class CompressedVolumeReader implements VolumeReader {
+	public static final String EXTENSION = ".vxz";
+	public static final int MAGIC = 0x315a5856; // "VXZ1"
+	public static final int HEADER_LENGTH = 24; // Length of the header without the brick table
+
+	@Override
+	public boolean canRead(File file) {
+		return file.getName().toLowerCase().endsWith(EXTENSION);
+	}
+
+	@Override
+	public VolumeHeader readHeader(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = read(channel, 0, HEADER_LENGTH);
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("File is not a compressed volume data file: " + file);
+			}
+
+			int sizeX = buffer.getInt();
+			int sizeY = buffer.getInt();
+			int sizeZ = buffer.getInt();
+			int brickSize = buffer.getInt();
+			int brickCount = buffer.getInt();
+			if (sizeX <= 0 || sizeY <= 0 || sizeZ <= 0) {
+				throw new IOException(String.format("Volume size %dx%dx%d is not positive: ", sizeX, sizeY, sizeZ) + file);
+			}
+			if (brickSize <= 0 || Integer.bitCount(brickSize) != 1) {
+				throw new IOException("Brick size " + brickSize + " is not a power of two: " + file);
+			}
+
+			// Damaged files shouldn't fail later on the missing bricks
+			long expectedCount = (long) ((sizeX + brickSize - 1) / brickSize) * ((sizeY + brickSize - 1) / brickSize)
+					* ((sizeZ + brickSize - 1) / brickSize);
+			if (brickCount != expectedCount) {
+				throw new IOException("Brick table has " + brickCount + " bricks instead of " + expectedCount + ": " + file);
+			}
+
+			// Position of every brick
+			long[] offsets = new long[brickCount + 1];
+			read(channel, HEADER_LENGTH, offsets.length * 8).asLongBuffer().get(offsets);
+			return new CompressedVolumeHeader(sizeX, sizeY, sizeZ, brickSize, file, offsets);
+		}
+	}
+
+	@Override
+	public void readSlices(VolumeHeader header, VoxelGrid grid, int fromZ, int toZ) throws IOException {
+		CompressedVolumeHeader compressed = (CompressedVolumeHeader) header;
+		int brickSize = compressed.getBrickSize();
+		int bricksX = compressed.getBricksX();
+		int bricksY = compressed.getBricksY();
+		int firstLayer = fromZ / brickSize;
+		int lastLayer = (toZ - 1) / brickSize;
+		int firstBrick = compressed.brickIndex(0, 0, firstLayer);
+		int lastBrick = compressed.brickIndex(bricksX - 1, bricksY - 1, lastLayer);
+
+		try (FileChannel channel = FileChannel.open(header.getDataFile().toPath(), StandardOpenOption.READ)) {
+			// Bricks of the slab are stored one after another, so they are mapped together
+			long start = compressed.getBrickOffset(firstBrick);
+			long end = compressed.getBrickOffset(lastBrick + 1);
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+
+			IntStream.rangeClosed(firstBrick, lastBrick).parallel().forEach(brick -> {
+				int bx = brick % bricksX;
+				int by = brick / bricksX % bricksY;
+				int bz = brick / bricksX / bricksY;
+				ByteBuffer in = data.duplicate();
+				in.position((int) (compressed.getBrickOffset(brick) - start));
+
+				// Decode the brick and put its rows from the required slices into the grid
+				int x0 = bx * brickSize, y0 = by * brickSize, z0 = bz * brickSize;
+				int width = Math.min(brickSize, header.getSizeX() - x0);
+				int height = Math.min(brickSize, header.getSizeY() - y0);
+				int depth = Math.min(brickSize, header.getSizeZ() - z0);
+				short[] box = new short[width * height * depth];
+				BrickCodec.decode(in, box, box.length);
+
+				for (int k = Math.max(z0, fromZ); k < Math.min(z0 + depth, toZ); k++) {
+					for (int j = 0; j < height; j++) {
+						grid.setRowPart(x0, y0 + j, k, box, ((k - z0) * height + j) * width, width);
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void readRegion(VolumeHeader header, FileChannel channel, int x0, int y0, int z0, int sizeX, int sizeY,
+			int sizeZ, short[] destination) throws IOException {
+		CompressedVolumeHeader compressed = (CompressedVolumeHeader) header;
+		int brickSize = compressed.getBrickSize();
+
+		// Decode only the bricks which cross the box
+		for (int bz = z0 / brickSize; bz <= (z0 + sizeZ - 1) / brickSize; bz++) {
+			for (int by = y0 / brickSize; by <= (y0 + sizeY - 1) / brickSize; by++) {
+				for (int bx = x0 / brickSize; bx <= (x0 + sizeX - 1) / brickSize; bx++) {
+					int brick = compressed.brickIndex(bx, by, bz);
+					int bx0 = bx * brickSize, by0 = by * brickSize, bz0 = bz * brickSize;
+					int width = Math.min(brickSize, header.getSizeX() - bx0);
+					int height = Math.min(brickSize, header.getSizeY() - by0);
+					int depth = Math.min(brickSize, header.getSizeZ() - bz0);
+					short[] box = new short[width * height * depth];
+					BrickCodec.decode(read(channel, compressed.getBrickOffset(brick), compressed.getBrickLength(brick)),
+							box, box.length);
+
+					// Copy the common part of the brick and the box
+					int fromX = Math.max(x0, bx0), toX = Math.min(x0 + sizeX, bx0 + width);
+					for (int k = Math.max(z0, bz0); k < Math.min(z0 + sizeZ, bz0 + depth); k++) {
+						for (int j = Math.max(y0, by0); j < Math.min(y0 + sizeY, by0 + height); j++) {
+							System.arraycopy(box, ((k - bz0) * height + (j - by0)) * width + fromX - bx0, destination,
+									((k - z0) * sizeY + (j - y0)) * sizeX + fromX - x0, toX - fromX);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Reads the following part of the file
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Compressed volume data file is smaller than expected");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,113 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Converts volume data of any supported format into the compressed volume data
+ * file (.vxz), see CompressedVolumeReader for the file structure. Bricks of
+ * every layer are compressed in parallel
+ * 
+ * @author s0s100
+ *
+ */
+
+public class CompressedVolumeWriter {
+	public static final int DEFAULT_BRICK_SIZE = 16;
+
+	private CompressedVolumeWriter() {
+	}
+
+	// Writes the volume into the file, bricks have the following side
+	public static void write(VolumeSource volume, File file, int brickSize) throws IOException {
+		int sizeX = volume.getSizeX();
+		int sizeY = volume.getSizeY();
+		int sizeZ = volume.getSizeZ();
+		int bricksX = (sizeX + brickSize - 1) / brickSize;
+		int bricksY = (sizeY + brickSize - 1) / brickSize;
+		int bricksZ = (sizeZ + brickSize - 1) / brickSize;
+		int brickCount = bricksX * bricksY * bricksZ;
+		long[] offsets = new long[brickCount + 1];
+		long position = CompressedVolumeReader.HEADER_LENGTH + offsets.length * 8L; // Bricks go after the header
+		short[] layer = new short[sizeX * sizeY * brickSize]; // Rows of the current brick layer
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (int bz = 0; bz < bricksZ; bz++) {
+				int z0 = bz * brickSize;
+				int depth = Math.min(brickSize, sizeZ - z0);
+
+				// Copy the layer once and compress its bricks in parallel
+				for (int k = 0; k < depth; k++) {
+					for (int j = 0; j < sizeY; j++) {
+						volume.copyRow(j, z0 + k, layer, (k * sizeY + j) * sizeX);
+					}
+				}
+				byte[][] bricks = IntStream.range(0, bricksX * bricksY).parallel()
+						.mapToObj(brick -> encodeBrick(layer, sizeX, sizeY, depth, brick % bricksX * brickSize,
+								brick / bricksX * brickSize, brickSize))
+						.toArray(byte[][]::new);
+
+				for (int brick = 0; brick < bricks.length; brick++) {
+					offsets[bz * bricksX * bricksY + brick] = position;
+					position += write(channel, ByteBuffer.wrap(bricks[brick]), position);
+				}
+			}
+			offsets[brickCount] = position;
+
+			// Header is written when every brick position is known
+			ByteBuffer header = ByteBuffer.allocate(CompressedVolumeReader.HEADER_LENGTH + offsets.length * 8)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(CompressedVolumeReader.MAGIC).putInt(sizeX).putInt(sizeY).putInt(sizeZ).putInt(brickSize)
+					.putInt(brickCount);
+			for (long offset : offsets) {
+				header.putLong(offset);
+			}
+			header.flip();
+			write(channel, header, 0);
+		}
+
+		System.out.println(String.format("Compressed volume is written to %s: %d bytes (%.1f%% of raw data)", file,
+				position, 100d * position / (2L * sizeX * sizeY * sizeZ)));
+	}
+
+	// Compresses one brick of the layer, edge bricks contain only the voxels inside the volume
+	private static byte[] encodeBrick(short[] layer, int sizeX, int sizeY, int depth, int x0, int y0, int brickSize) {
+		int width = Math.min(brickSize, sizeX - x0);
+		int height = Math.min(brickSize, sizeY - y0);
+		short[] box = new short[width * height * depth];
+
+		for (int k = 0; k < depth; k++) {
+			for (int j = 0; j < height; j++) {
+				System.arraycopy(layer, (k * sizeY + y0 + j) * sizeX + x0, box, (k * height + j) * width, width);
+			}
+		}
+		return BrickCodec.encode(box, box.length);
+	}
+
+	// Writes the whole buffer at the following position
+	private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + length - buffer.remaining());
+		}
+		return length;
+	}
+
+	// Converts the volume data file: CompressedVolumeWriter <input> <output.vxz> [brick size]
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: CompressedVolumeWriter <input> <output" + CompressedVolumeReader.EXTENSION
+					+ "> [brick size]");
+			return;
+		}
+
+		VolumeData volumeData = new VolumeData();
+		volumeData.readData(args[0]);
+		write(volumeData.getVolume(), new File(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BRICK_SIZE);
+		volumeData.close();
+	}
+}
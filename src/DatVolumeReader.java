@@ -0,0 +1,51 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+/**
+ * Reader of the .dat data sets. The file starts with 3 unsigned 16 bit axis
+ * lengths followed by unsigned 16 bit values, everything is little endian:
+ * 
+ * <pre>
+ * unsigned short vuSize[3];
+ * fread((void*)vuSize,3,sizeof(unsigned short),fp);
+ * unsigned short *pData = new unsigned short[uCount];
+ * fread((void*)pData,uCount,sizeof(unsigned short),fp);
+ * </pre>
+ * 
+ * @author s0s100
+ *
+ */
+
+public class DatVolumeReader extends RawVolumeReader {
+	private static final int HEADER_LENGTH = 6; // 3 axis lengths
+	private static final int BYTES_PER_VOXEL = 2;
+
+	@Override
+	public boolean canRead(File file) {
+		return hasExtension(file, ".dat");
+	}
+
+	@Override
+	public VolumeHeader readHeader(File file) throws IOException {
+		int sizeX, sizeY, sizeZ;
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			sizeX = readSize(in);
+			sizeY = readSize(in);
+			sizeZ = readSize(in);
+		}
+
+		return new VolumeHeader(sizeX, sizeY, sizeZ, BYTES_PER_VOXEL, false, ByteOrder.LITTLE_ENDIAN, file,
+				HEADER_LENGTH);
+	}
+
+	// Reads 1 unsigned little endian axis length
+	private static int readSize(DataInputStream in) throws IOException {
+		int bytePos1 = in.readByte() & 0xff;
+		int bytePos2 = in.readByte() & 0xff;
+		return (bytePos2 << 8) | bytePos1;
+	}
+}
@@ -0,0 +1,148 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * On-disk cache of the data derived from the volume (material runs of the Q2
+ * renders). Every entry is a file named by the hash of the volume content and
+ * the key of the entry, the key should contain every render parameter of the
+ * entry. Values are compressed by BrickCodec and the files are
+ * mapped back into memory on the next launch
+ * 
+ * <pre>
+ * int magic ("VDC1"), kind
+ * values: int count, length, byte data[length]
+ * </pre>
+ * 
+ * @author s0s100
+ *
+ */
+
+public class DerivedDataCache {
+	// Should be changed when the rendering is changed, so old entries are not used
+	private static final int VERSION = 2;
+	private static final int MAGIC = 0x31434456; // "VDC1"
+	private static final int VALUES = 2; // Kind of the entries
+
+	private final File directory; // Directory with the entries
+	private final String datasetHash; // Hash which identifies the volume
+
+	// Constructor which uses the following directory for the entries of the volume with the following hash
+	public DerivedDataCache(File directory, String datasetHash) {
+		this.directory = directory;
+		this.datasetHash = datasetHash;
+	}
+
+	// Directory from the 'volume.cache.dir' system property or '.volume-cache' in the user home directory
+	public static File getDefaultDirectory() {
+		String path = System.getProperty("volume.cache.dir");
+		if (path != null) {
+			return new File(path);
+		}
+		return new File(System.getProperty("user.home"), ".volume-cache");
+	}
+
+	// Reads values of the entry, null if there is no such entry or it can't be read
+	public int[] readValues(String key) {
+		ByteBuffer in = map(key, VALUES);
+		if (in == null) {
+			return null;
+		}
+
+		try {
+			int count = in.getInt();
+			in.getInt(); // Length of the compressed values
+			short[] values = new short[count];
+			BrickCodec.decode(in, values, count);
+
+			int[] result = new int[count];
+			for (int i = 0; i < count; i++) {
+				result[i] = values[i];
+			}
+			return result;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+				| NegativeArraySizeException e) {
+			System.out.println("Cached data " + key + " is damaged and will be rebuilt");
+			return null;
+		}
+	}
+
+	// Writes values which fit into 16 bits
+	public void writeValues(String key, int[] values) {
+		short[] shortValues = new short[values.length];
+		for (int i = 0; i < values.length; i++) {
+			shortValues[i] = (short) values[i];
+		}
+		byte[] data = BrickCodec.encode(shortValues, shortValues.length);
+
+		ByteBuffer out = ByteBuffer.allocate(8 + data.length).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(values.length).putInt(data.length).put(data);
+		write(key, VALUES, out);
+	}
+
+	// Maps the file of the entry and checks its header, null if the entry can't be used
+	private ByteBuffer map(String key, int kind) {
+		File file = getFile(key);
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != kind) {
+				System.out.println("Cached data " + key + " has unknown format and will be rebuilt");
+				return null;
+			}
+			return in;
+		} catch (IOException e) {
+			System.out.println("Cached data " + key + " can't be read: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Writes the entry into a temporary file and moves it in place, so other launches never see a part of it
+	private void write(String key, int kind, ByteBuffer content) {
+		content.flip();
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(kind).flip();
+
+		File file = getFile(key);
+		File temporary = null;
+		try {
+			Files.createDirectories(directory.toPath());
+			temporary = File.createTempFile(file.getName(), ".tmp", directory);
+			try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE)) {
+				while (header.hasRemaining() || content.hasRemaining()) {
+					channel.write(new ByteBuffer[] { header, content });
+				}
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Derived data " + key + " can't be cached: " + e.getMessage());
+			if (temporary != null) {
+				temporary.delete();
+			}
+		}
+	}
+
+	// File of the entry with the following key
+	private File getFile(String key) {
+		return new File(directory, datasetHash + "-v" + VERSION + "-" + key + ".bin");
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public String getDatasetHash() {
+		return datasetHash;
+	}
+}
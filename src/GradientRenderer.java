@@ -1,17 +1,25 @@
-import javafx.scene.image.PixelWriter;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
 import javafx.scene.image.WritableImage;
 import javafx.scene.paint.Color;
 
 /**
  * Class with rendering Q3 elements. Renders only bones (with predefined
- * boundary). Allows to rotate the object and change color / angle of the light
+ * boundary). Allows to rotate the object and change color / angle of the light.
+ * While the object is rotated by the user a reduced level of the volume can be
+ * used, every pixel of the reduced image covers several pixels of the result.
+ * Rays jump over the bricks without bone elements using the min-max octree.
+ * With ray casting the volume is not rotated, every ray is mapped back into
+ * the unrotated data and the bone surface is found with trilinear samples
  * 
  * @author s0s100
  *
  */
 
 public class GradientRenderer {
-	private static final int IMAGE_SIDE_LENGTH = 256;
+	public static final int IMAGE_SIDE_LENGTH = 256; // Length of every side of the rendered cube and image
+	public static final int INTERACTIVE_LEVEL = 1; // Level used while the object is being rotated
 
 	// Boundaries of the light
 	public static final int MIN_LIGHT_X = -IMAGE_SIDE_LENGTH / 2;
@@ -23,6 +31,11 @@ public class GradientRenderer {
 	private static final double SPECULAR_COEFFICIET = 1d;
 	private static final int SHININGNESS_COEFFICIET = 10;
 
+	// Lighting kernel selected at startup by the 'volume.kernel' system property: "lanes" (default) or "scalar"
+	private static final boolean LANE_KERNEL = !"scalar".equals(System.getProperty("volume.kernel"));
+	// Rotation selected at startup by the 'volume.rotation' system property: "parallel" (default) or "serial"
+	private static final boolean PARALLEL_ROTATION = !"serial".equals(System.getProperty("volume.rotation"));
+
 	// Bone color
 	private static final Color BONE_COLOR = Color.WHITE;
 	private static final Color AMBIENT_COLOR = Color.WHITESMOKE;
@@ -30,15 +43,11 @@ public class GradientRenderer {
 	// Bone boundary
 	private static final int MIN_BONE_BOUNDARY = 300;
 	private static final int MAX_BONE_BOUNDARY = 1000;
+	private static final int RAY_HIT_VALUE = MIN_BONE_BOUNDARY / 2; // Sample which is the bone surface for the ray casting
 
 	// Length of every side of the image
 	//private static final int IMAGE_SIDE_LENGTH = 256;
 
-	// Skull center coordinates
-	private static final int X_CENTER = IMAGE_SIDE_LENGTH / 2;
-	private static final int Y_CENTER = IMAGE_SIDE_LENGTH / 2;
-	private static final int Z_CENTER = IMAGE_SIDE_LENGTH / 2;
-
 	private VolumeData data; // Data with a skull
 	private int xLightDistance; // Light x position according to the light center
 	private Color lightColor; // Color of the light source
@@ -52,13 +61,56 @@ public class GradientRenderer {
 	double[][] dxRotation;
 	double[][] dyRotation;
 
-	private int[][][] unrotatedData; // Transformed data to work with
-	private int[][][] rotatedData; // Transformed data including rotation
+	// Working volumes are stored brick by brick, so rays and rotation along every axis stay in cache
+	private static final int BRICK_SIZE = 16;
+	private static final int BRICK_MASK = BRICK_SIZE - 1; // Position inside the brick
+	// Cast rays jump over the empty blocks of the following side, bricks are too coarse for the thin bones
+	private static final int RAY_BLOCK_SIZE = 4;
+	// Every level halves the working volume, the smallest one is one brick
+	private static final int MAX_LEVEL = Integer.numberOfTrailingZeros(IMAGE_SIDE_LENGTH / BRICK_SIZE);
+
+	private int level; // Current level, 0 - full resolution
+	private int side; // Length of every side of the working volume at the current level
+	private int center; // Skull center coordinate along every axis at the current level
+	private VoxelLayout layout; // Position of every element of the working volumes at the current level
+	private final int[][] levelData; // Unrotated data of every level, generated when it is required first
+	private final MinMaxOctree[] levelOccupancy; // Bricks of the unrotated data of every level which contain bone elements
+	private final BoneBlocks[] levelBoneBlocks; // Parts of the unrotated data of every level which are near bone elements
+	private final NormalVolume[] levelNormals; // Normals of the unrotated data of every level near bone elements
+	private boolean rotated; // Whether the rotation was set by the user
+	private boolean rotatedDataValid; // Whether the rotated data has the current rotation and level
+	private boolean rayCasting; // Whether the rays are cast through the unrotated data instead of rotating it
+
+	private int[] unrotatedData; // Transformed data to work with
+	private MinMaxOctree unrotatedOccupancy; // Bricks of the unrotated data which contain bone elements
+	private BoneBlocks boneBlocks; // Parts of the unrotated data where a trilinear sample can be above 0
+	private NormalVolume normals; // Normals of the unrotated data, they are turned into the view by the shading
+	private int[] rotatedData; // Transformed data including rotation
+	private MinMaxOctree occupancy; // Bricks of the rotated data which contain bone elements
+	private final int[][] levelRotatedData; // Rotated data of every level, reused by every rotation
+	private final MinMaxOctree[] levelRotatedOccupancy; // Bricks of the rotated data of every level which contain bone elements
+
+	// Buffers of the frames are made for the full resolution once, smaller levels use their beginning
+	private final PixelBuffer pixels = new PixelBuffer(IMAGE_SIDE_LENGTH, IMAGE_SIDE_LENGTH); // Colors of the rendered image
+	private final int[][] requiredPixels = new int[IMAGE_SIDE_LENGTH][IMAGE_SIDE_LENGTH]; // Depth of the surface of every pixel
+	private final LaneBuffers laneBuffers = new LaneBuffers(IMAGE_SIDE_LENGTH * IMAGE_SIDE_LENGTH); // Lanes of the lighting kernel
+	private final int[] rayHits = new int[IMAGE_SIDE_LENGTH * IMAGE_SIDE_LENGTH]; // Whether the ray of the pixel found the surface
+	private final double[] rayHitZ = new double[IMAGE_SIDE_LENGTH * IMAGE_SIDE_LENGTH]; // Depth of the surface found by the ray
+	private final double[] rayHitGradient = new double[IMAGE_SIDE_LENGTH * IMAGE_SIDE_LENGTH * 3]; // Gradient of the surface found by the ray
+	private final double[] surfaceGradient = new double[3]; // Gradient of the current surface pixel in the view
 
 	// Constructor which sets default values and fills unrotated and rotated data
 	public GradientRenderer(VolumeData data, int xLightDistance, Color lightColor) {
 		this.data = data;
-		transformData();
+		levelData = new int[MAX_LEVEL + 1][];
+		levelOccupancy = new MinMaxOctree[MAX_LEVEL + 1];
+		levelBoneBlocks = new BoneBlocks[MAX_LEVEL + 1];
+		levelNormals = new NormalVolume[MAX_LEVEL + 1];
+		levelRotatedData = new int[MAX_LEVEL + 1][];
+		levelRotatedOccupancy = new MinMaxOctree[MAX_LEVEL + 1];
+		useLevel(0);
+		useUnrotatedData();
+		rotatedDataValid = true;
 
 		// Generate rotation scale matrices and angles
 		xAngle = 0;
@@ -71,32 +123,118 @@ public class GradientRenderer {
 		this.lightColor = lightColor;
 	}
 
+	// Selects the level of the working volume, it is rotated when it is rendered
+	public void setLevel(int level) {
+		level = Math.min(level, MAX_LEVEL);
+		if (level != this.level) {
+			useLevel(level);
+			rotatedDataValid = false;
+		}
+	}
+
+	// Rotates the working volume if the rotation or the level was changed after the last rotation
+	private void updateRotatedData() {
+		if (rotatedDataValid) {
+			return;
+		}
+		if (rotated) {
+			rotateData();
+		} else {
+			useUnrotatedData();
+		}
+		rotatedDataValid = true;
+	}
+
+	// Switches the working volume to the level, its unrotated data is generated if it is required first
+	private void useLevel(int level) {
+		this.level = level;
+		side = IMAGE_SIDE_LENGTH >> level;
+		center = side / 2;
+		layout = VoxelLayout.bricked(side, side, side, BRICK_SIZE);
+		if (levelData[level] == null) {
+			levelData[level] = readTransformedData();
+			levelOccupancy[level] = MinMaxOctree.build(levelData[level], layout);
+			levelBoneBlocks[level] = new BoneBlocks(levelData[level], levelOccupancy[level], side);
+			levelNormals[level] = new NormalVolume(levelData[level], layout);
+		}
+		unrotatedData = levelData[level];
+		unrotatedOccupancy = levelOccupancy[level];
+		boneBlocks = levelBoneBlocks[level];
+		normals = levelNormals[level];
+	}
+
+	// Renders the unrotated data of the current level, it is not copied
+	private void useUnrotatedData() {
+		rotatedData = unrotatedData;
+		occupancy = unrotatedOccupancy;
+	}
+
+	// Finds the next Z of the ray which can be a bone element, empty bricks are skipped when the ray enters them.
+	// Elements of the working volumes are never negative, so every bone element is at least 1
+	private int nextBoneZ(int x, int y, int z) {
+		if ((z & (BRICK_SIZE - 1)) != 0) {
+			return z;
+		}
+		return occupancy.findNextZ(x, y, z, 1, Integer.MAX_VALUE);
+	}
+
+	// Gets unrotated data of the current level from the derived data cache or generates and caches it
+	private int[] readTransformedData() {
+		DerivedDataCache cache = data.getDerivedCache();
+		String key = String.format("bones-%d-%d-%d", side, MIN_BONE_BOUNDARY, MAX_BONE_BOUNDARY);
+		int[] result = cache != null ? cache.readValues(key) : null;
+		if (result != null && result.length == layout.getCapacity()) {
+			return result;
+		}
+
+		result = transformData();
+		if (cache != null) {
+			cache.writeValues(key, result);
+		}
+		return result;
+	}
+
 	// Removes everything except bone elements (does it optimize?)
-	private void transformData() {
-		unrotatedData = new int[IMAGE_SIDE_LENGTH][IMAGE_SIDE_LENGTH][IMAGE_SIDE_LENGTH];
-		rotatedData = new int[IMAGE_SIDE_LENGTH][IMAGE_SIDE_LENGTH][IMAGE_SIDE_LENGTH];
+	private int[] transformData() {
+		int[] result = new int[layout.getCapacity()];
 
 		//  Generate data set to work with image and doubles values at Z axis
-		// generateUnrotatedData();
-		generateUnrotatedDataDoubledZ();
-		// generateNewUnrotatedData();
-		rotatedData = unrotatedData;
+		// generateUnrotatedData(result);
+		generateUnrotatedDataDoubledZ(result);
+		// generateNewUnrotatedData(result);
+		return result;
+	}
+
+	// Finds the pyramid level which fits into the working volume best
+	private VolumeSource findSourceVolume() {
+		VolumeSource volume = data.getVolume();
+		if (Math.max(volume.getSizeX(), Math.max(volume.getSizeY(), volume.getSizeZ())) <= side) {
+			return volume;
+		}
+		return data.getVolume(data.getPyramid().findLevel(side));
 	}
 
 	// Generates unrotated data for different type
-	private void generateNewUnrotatedData() {
-		int xShift = (IMAGE_SIDE_LENGTH - VolumeData.CT_X_AXIS) / 2;
-		int yShift = (IMAGE_SIDE_LENGTH - VolumeData.CT_Y_AXIS) / 2;
-		int zShift = (IMAGE_SIDE_LENGTH - VolumeData.CT_Z_AXIS) / 2;
+	private void generateNewUnrotatedData(int[] result) {
+		VolumeSource volume = findSourceVolume();
+		short[] row = new short[volume.getSizeX()]; // Current X row of the volume
+		int step = sampleStep(volume); // Distance between used elements, bigger volumes are downsampled
+		int sizeX = volume.getSizeX() / step;
+		int sizeY = volume.getSizeY() / step;
+		int sizeZ = volume.getSizeZ() / step;
+		int xShift = (side - sizeX) / 2;
+		int yShift = (side - sizeY) / 2;
+		int zShift = (side - sizeZ) / 2;
 		int element;
 
 		// Standart transformation without changing Z size (but moving it in the middle)
-		for (int i = 0; i < VolumeData.CT_X_AXIS; i++) {
-			for (int j = 0; j < VolumeData.CT_Y_AXIS; j++) {
-				for (int k = 0; k < VolumeData.CT_Z_AXIS; k++) {
-					element = data.getVolume()[i][j][k];
+		for (int k = 0; k < sizeZ; k++) {
+			for (int j = 0; j < sizeY; j++) {
+				volume.copyRow(j * step, k * step, row, 0);
+				for (int i = 0; i < sizeX; i++) {
+					element = row[i * step];
 					if (element > MIN_BONE_BOUNDARY && element < MAX_BONE_BOUNDARY) {
-						unrotatedData[i + xShift][j + yShift][k + zShift] = element;
+						result[layout.index(i + xShift, j + yShift, k + zShift)] = element;
 					}
 				}
 			}
@@ -104,19 +242,26 @@ public class GradientRenderer {
 	}
 
 	// Generates default unrotated data
-	private void generateUnrotatedData() {
-		int xShift = (IMAGE_SIDE_LENGTH - VolumeData.CT_X_AXIS) / 2;
-		int yShift = (IMAGE_SIDE_LENGTH - VolumeData.CT_Y_AXIS) / 2;
-		int zShift = (IMAGE_SIDE_LENGTH - VolumeData.CT_Z_AXIS) / 2;
+	private void generateUnrotatedData(int[] result) {
+		VolumeSource volume = findSourceVolume();
+		short[] row = new short[volume.getSizeX()]; // Current X row of the volume
+		int step = sampleStep(volume); // Distance between used elements, bigger volumes are downsampled
+		int sizeX = volume.getSizeX() / step;
+		int sizeY = volume.getSizeY() / step;
+		int sizeZ = volume.getSizeZ() / step;
+		int xShift = (side - sizeX) / 2;
+		int yShift = (side - sizeY) / 2;
+		int zShift = (side - sizeZ) / 2;
 		int element;
 
 		// Standart transformation without changing Z size (but moving it in the middle)
-		for (int i = 0; i < VolumeData.CT_X_AXIS; i++) {
-			for (int j = 0; j < VolumeData.CT_Y_AXIS; j++) {
-				for (int k = 0; k < VolumeData.CT_Z_AXIS; k++) {
-					element = data.getVolume()[i][j][k];
+		for (int k = 0; k < sizeZ; k++) {
+			for (int j = 0; j < sizeY; j++) {
+				volume.copyRow(j * step, k * step, row, 0);
+				for (int i = 0; i < sizeX; i++) {
+					element = row[i * step];
 					if (element > MIN_BONE_BOUNDARY && element < MAX_BONE_BOUNDARY) {
-						unrotatedData[i + xShift][j + yShift][k + zShift] = element;
+						result[layout.index(i + xShift, j + yShift, k + zShift)] = element;
 					}
 				}
 			}
@@ -124,32 +269,44 @@ public class GradientRenderer {
 	}
 
 	// Generates default unrotated data with doubled Z (not optimized for the other volume data
-	private void generateUnrotatedDataDoubledZ() {
-		int xShift = (IMAGE_SIDE_LENGTH - VolumeData.CT_X_AXIS) / 2;
-		int yShift = (IMAGE_SIDE_LENGTH - VolumeData.CT_Y_AXIS) / 2;
-		//int zShift = (IMAGE_SIDE_LENGTH - VolumeData.CT_Z_AXIS) / 2;
-		int zShift = 15;
+	private void generateUnrotatedDataDoubledZ(int[] result) {
+		VolumeSource volume = findSourceVolume();
+		short[] row = new short[volume.getSizeX()]; // Current X row of the volume
+		int step = sampleStep(volume); // Distance between used elements, bigger volumes are downsampled
+		int sizeX = volume.getSizeX() / step;
+		int sizeY = volume.getSizeY() / step;
+		int sizeZ = volume.getSizeZ() / step;
+		int xShift = (side - sizeX) / 2;
+		int yShift = (side - sizeY) / 2;
+		int zShift = Math.min(15 >> level, (side - sizeZ) / 2); // Doubled shift should stay inside the cube
 
 		int element;
 		// Standart transformation with doubling Z
-		for (int i = 0; i < VolumeData.CT_X_AXIS; i++) {
-			for (int j = 0; j < VolumeData.CT_Y_AXIS; j++) {
-				for (int k = 0; k < VolumeData.CT_Z_AXIS; k++) {
-					element = data.getVolume()[i][j][k];
+		for (int k = 0; k < sizeZ; k++) {
+			for (int j = 0; j < sizeY; j++) {
+				volume.copyRow(j * step, k * step, row, 0);
+				for (int i = 0; i < sizeX; i++) {
+					element = row[i * step];
 					if (element > MIN_BONE_BOUNDARY && element < MAX_BONE_BOUNDARY) {
-						unrotatedData[i + xShift][j + yShift][k + zShift] = element;
-						unrotatedData[i + xShift][j + yShift][k + zShift * 2] = element;
+						result[layout.index(i + xShift, j + yShift, k + zShift)] = element;
+						result[layout.index(i + xShift, j + yShift, k + zShift * 2)] = element;
 					}
 				}
 			}
 		}
 	}
 
+	// Finds distance between used volume elements so the volume fits into the working cube
+	private int sampleStep(VolumeSource volume) {
+		int maxSize = Math.max(volume.getSizeX(), Math.max(volume.getSizeY(), volume.getSizeZ()));
+		return (maxSize + side - 1) / side;
+	}
+
 	/*
 	 * Rendering functions
 	 */
 
-	// Renders an image
+	// Renders an image, two images are used by turns, so the image is overwritten by the render after the next one
 	public WritableImage renderImage() {
 		WritableImage image = null;
 		//image = q2Rendering();
@@ -159,46 +316,54 @@ public class GradientRenderer {
 
 	// Rendering for the image using Q2 volume rendering
 	public WritableImage q2Rendering() {
-		WritableImage result = new WritableImage(VolumeData.CT_X_AXIS, VolumeData.CT_Y_AXIS);
-		PixelWriter writer = result.getPixelWriter();
+		updateRotatedData();
 		int element;
 		double boneTransp = 0.8d; // Default bone transparency
 		double transpAccum; // Transparency accumulator
-		Color colorToUse; // End pixel color
 
-		for (int i = 0; i < IMAGE_SIDE_LENGTH; i++) {
-			for (int j = 0; j < IMAGE_SIDE_LENGTH; j++) {
-				transpAccum = 1d;
-
-				for (int k = 0; k < IMAGE_SIDE_LENGTH; k++) {
-					element = rotatedData[i][j][k];
-
-					// Finds result transparency
-					if (element != 0) {
-						transpAccum *= boneTransp;
+		// Pixels are processed tile by tile, so neighbour rays go through the same bricks
+		for (int ti = 0; ti < side; ti += BRICK_SIZE) {
+			for (int tj = 0; tj < side; tj += BRICK_SIZE) {
+				for (int i = ti; i < ti + BRICK_SIZE; i++) {
+					for (int j = tj; j < tj + BRICK_SIZE; j++) {
+						transpAccum = 1d;
+
+						for (int k = nextBoneZ(i, j, 0); k < side; k = nextBoneZ(i, j, k + 1)) {
+							element = rotatedData[layout.index(i, j, k)];
+
+							// Finds result transparency
+							if (element != 0) {
+								transpAccum *= boneTransp;
+							}
+						}
+
+						// Draw a pixel if it has found at least one required elements
+						if (transpAccum != 1d) {
+							transpAccum = 1d - transpAccum;
+							setPixel(i, j, PixelBuffer.argb(lightColor.getRed() * transpAccum,
+									lightColor.getGreen() * transpAccum, lightColor.getBlue() * transpAccum));
+						}
+
+						if (transpAccum == 1d) {
+							setPixel(i, j, PixelBuffer.BLACK);
+						}
 					}
 				}
-
-				// Draw a pixel if it has found at least one required elements
-				if (transpAccum != 1d) {
-					transpAccum = 1d - transpAccum;
-					colorToUse = new Color(lightColor.getRed() * transpAccum, lightColor.getGreen() * transpAccum,
-							lightColor.getBlue() * transpAccum, 1d);
-					writer.setColor(i, j, colorToUse);
-				}
-
-				if (transpAccum == 1d) {
-					writer.setColor(i, j, Color.BLACK);
-				}
 			}
 		}
-		return result;
+		return pixels.writeImage();
 	}
 
-	// Gradient rendering with light implementation
+	// Gradient rendering with light implementation, the kernel is selected at startup
 	private WritableImage generateLightImage() {
-		WritableImage result = new WritableImage(VolumeData.CT_X_AXIS, VolumeData.CT_Y_AXIS);
-		PixelWriter writer = result.getPixelWriter();
+		if (rayCasting) {
+			return generateLightImageRays();
+		}
+
+		updateRotatedData();
+		if (LANE_KERNEL) {
+			return generateLightImageLanes();
+		}
 
 		// Finds pixels which user can see
 		int[][] pixelsToCalculate = findRequiredPixels();
@@ -215,11 +380,10 @@ public class GradientRenderer {
 		double r, g, b; // Result colors
 		double dotResult; // Result of the dot product for diffuse calculations
 		double specularDotResult; // Result of the dot product for specular calculations
-		Color colorToUse; // Color which will be used by pixel writer
 
 		// Calculate data for all required pixels
-		for (int i = 0; i < IMAGE_SIDE_LENGTH; i++) {
-			for (int j = 0; j < IMAGE_SIDE_LENGTH; j++) {
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
 				zPos = pixelsToCalculate[i][j];
 
 				if (zPos != -1) {
@@ -231,10 +395,10 @@ public class GradientRenderer {
 					// System.out.println(String.format("Generated vector (%1.3f, %1.3f, %1.3f)", gradientVector.getDX(),
 					//		gradientVector.getDX(), gradientVector.getDX()));
 
-					// Position of the light source
-					lx = X_CENTER + xLightDistance;
-					ly = Y_CENTER + Y_LIGHT_DISTANCE;
-					lz = Z_CENTER + Z_LIGHT_DISTANCE;
+					// Position of the light source, distances are reduced with the working volume
+					lx = center + (xLightDistance >> level);
+					ly = center + (Y_LIGHT_DISTANCE >> level);
+					lz = center + (Z_LIGHT_DISTANCE >> level);
 
 					// Generate normalized light vector
 					// Is it the right direction?
@@ -249,7 +413,7 @@ public class GradientRenderer {
 					}
 
 					// Finds required data for the specular dot product
-					specularEyeVector = new Vector(i, j, zPos, IMAGE_SIDE_LENGTH / 2, IMAGE_SIDE_LENGTH / 2, 0);
+					specularEyeVector = new Vector(i, j, zPos, center, center, 0);
 					specularEyeVector = specularEyeVector.getNormalizedVector();
 
 					// Reflected ray vector required as well
@@ -293,78 +457,423 @@ public class GradientRenderer {
 					b = Math.min(1.0, b);
 
 					// Set the pixel to required color
-					colorToUse = new Color(r, g, b, 1d);
-					writer.setColor(i, j, colorToUse);
+					setPixel(i, j, PixelBuffer.argb(r, g, b));
 
 				} else {
 					// Background color
-					writer.setColor(i, j, Color.BLACK);
+					setPixel(i, j, PixelBuffer.BLACK);
 				}
 			}
 		}
 
-		return result;
+		return pixels.writeImage();
+	}
+
+	// Gradient rendering with light implementation which lights all the visible pixels together. Positions and
+	// gradients of the pixels are gathered into arrays (lanes) and then every step of the lighting is done for all
+	// the lanes with the same operations, without branches and objects, so the loops can be vectorized. The
+	// operations are the same as in the scalar kernel, so the image is the same
+	private WritableImage generateLightImageLanes() {
+		// Finds pixels which user can see
+		int[][] pixelsToCalculate = findRequiredPixels();
+		int lanes = 0;
+
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				if (pixelsToCalculate[i][j] != -1) {
+					lanes++;
+				} else {
+					// Background color
+					setPixel(i, j, PixelBuffer.BLACK);
+				}
+			}
+		}
+
+		int[] pi = laneBuffers.pi, pj = laneBuffers.pj; // Pixel of every lane
+		double[] pz = laneBuffers.pz; // Depth of the surface of every lane
+		double[] gx = laneBuffers.gx, gy = laneBuffers.gy, gz = laneBuffers.gz; // Surface gradient
+		int lane = 0;
+
+		// Gather positions and gradients of the visible pixels, gradients are not normalized yet
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				int zPos = pixelsToCalculate[i][j];
+				if (zPos != -1) {
+					pi[lane] = i;
+					pj[lane] = j;
+					pz[lane] = zPos;
+					if (precomputedGradient(i, j, zPos, surfaceGradient)) {
+						gx[lane] = surfaceGradient[0];
+						gy[lane] = surfaceGradient[1];
+						gz[lane] = surfaceGradient[2];
+					} else {
+						gx[lane] = gradientDifference(i, j, zPos, 0);
+						gy[lane] = gradientDifference(i, j, zPos, 1);
+						gz[lane] = gradientDifference(i, j, zPos, 2);
+					}
+					lane++;
+				}
+			}
+		}
+
+		lightLanes(lanes, pi, pj, pz, gx, gy, gz);
+		return pixels.writeImage();
+	}
+
+	// Lights the surface pixels of the lanes with the following depths and gradients (not normalized)
+	private void lightLanes(int lanes, int[] pi, int[] pj, double[] pz, double[] gx, double[] gy, double[] gz) {
+		double[] lx = laneBuffers.lx, ly = laneBuffers.ly, lz = laneBuffers.lz; // Light vector
+		double[] ex = laneBuffers.ex, ey = laneBuffers.ey, ez = laneBuffers.ez; // Eye vector
+		double[] diffuse = laneBuffers.diffuse; // Clamped dot product for diffuse calculations
+		double[] specular = laneBuffers.specular; // Clamped dot product for specular calculations
+		int lane;
+
+		// Light source position, distances are reduced with the working volume
+		int lightX = center + (xLightDistance >> level);
+		int lightY = center + (Y_LIGHT_DISTANCE >> level);
+		int lightZ = center + (Z_LIGHT_DISTANCE >> level);
+
+		// Vectors from the light and to the eye
+		for (lane = 0; lane < lanes; lane++) {
+			lx[lane] = pi[lane] - lightX;
+			ly[lane] = pj[lane] - lightY;
+			lz[lane] = pz[lane] - lightZ;
+			ex[lane] = center - pi[lane];
+			ey[lane] = center - pj[lane];
+			ez[lane] = 0 - pz[lane];
+		}
+
+		// Normalize the vectors
+		normalize(gx, gy, gz, lanes);
+		normalize(lx, ly, lz, lanes);
+		normalize(ex, ey, ez, lanes);
+
+		// Diffuse and specular dot products, R = 2 * (N x L) * N - L, where L - Starting ray, R - reflected ray and
+		// N - normal vector
+		for (lane = 0; lane < lanes; lane++) {
+			double dot = gx[lane] * lx[lane] + gy[lane] * ly[lane] + gz[lane] * lz[lane];
+			double twice = 2 * dot;
+			double rx = gx[lane] * twice - lx[lane];
+			double ry = gy[lane] * twice - ly[lane];
+			double rz = gz[lane] * twice - lz[lane];
+			double specularDot = ex[lane] * rx + ey[lane] * ry + ez[lane] * rz;
+			diffuse[lane] = dot < 0 ? 0 : dot;
+			specular[lane] = specularDot < 0 ? 0 : specularDot;
+		}
+
+		// Shininess power is not vectorized
+		for (lane = 0; lane < lanes; lane++) {
+			specular[lane] = Math.pow(specular[lane], SHININGNESS_COEFFICIET);
+		}
+
+		// Ambient color and the parts of diffuse and specular colors which are the same for every pixel
+		double ar = BONE_COLOR.getRed() * AMBIENT_COEFFICIET * AMBIENT_COLOR.getRed();
+		double ag = BONE_COLOR.getGreen() * AMBIENT_COEFFICIET * AMBIENT_COLOR.getGreen();
+		double ab = BONE_COLOR.getBlue() * AMBIENT_COEFFICIET * AMBIENT_COLOR.getBlue();
+		double kdr = BONE_COLOR.getRed() * DIFFUSE_COEFFICIET * lightColor.getRed();
+		double kdg = BONE_COLOR.getGreen() * DIFFUSE_COEFFICIET * lightColor.getGreen();
+		double kdb = BONE_COLOR.getBlue() * DIFFUSE_COEFFICIET * lightColor.getBlue();
+		double ksr = BONE_COLOR.getRed() * SPECULAR_COEFFICIET * lightColor.getRed();
+		double ksg = BONE_COLOR.getGreen() * SPECULAR_COEFFICIET * lightColor.getGreen();
+		double ksb = BONE_COLOR.getBlue() * SPECULAR_COEFFICIET * lightColor.getBlue();
+
+		// Result colors with the bounds
+		for (lane = 0; lane < lanes; lane++) {
+			double r = Math.min(1.0, ar + kdr * diffuse[lane] + ksr * specular[lane]);
+			double g = Math.min(1.0, ag + kdg * diffuse[lane] + ksg * specular[lane]);
+			double b = Math.min(1.0, ab + kdb * diffuse[lane] + ksb * specular[lane]);
+			setPixel(pi[lane], pj[lane], PixelBuffer.argb(r, g, b));
+		}
+	}
+
+	// Divides every vector of the lanes by its length
+	private static void normalize(double[] x, double[] y, double[] z, int lanes) {
+		for (int lane = 0; lane < lanes; lane++) {
+			double length = Math.sqrt(x[lane] * x[lane] + y[lane] * y[lane] + z[lane] * z[lane]);
+			x[lane] = x[lane] / length;
+			y[lane] = y[lane] / length;
+			z[lane] = z[lane] / length;
+		}
+	}
+
+	// Difference between the next and the previous elements along the axis (0 - X, 1 - Y, 2 - Z), the element
+	// itself is used at the sides of the working volume. It is the same as the gradient vector component
+	private int gradientDifference(int x, int y, int z, int axis) {
+		int dx = axis == 0 ? 1 : 0;
+		int dy = axis == 1 ? 1 : 0;
+		int dz = axis == 2 ? 1 : 0;
+		int position = axis == 0 ? x : axis == 1 ? y : z;
+		int element = rotatedData[layout.index(x, y, z)];
+
+		int first = position == 0 ? element : rotatedData[layout.index(x - dx, y - dy, z - dz)];
+		int second = position == side - 1 ? element : rotatedData[layout.index(x + dx, y + dy, z + dz)];
+		return second - first;
+	}
+
+	// Gradient rendering with light which casts a ray for every pixel through the unrotated data, the rotated data
+	// is not made. Rays are cast in parallel, the found surfaces are lit by the lanes kernel
+	private WritableImage generateLightImageRays() {
+		int[] hits = rayHits; // Whether the ray of the pixel (i * side + j) found the surface
+		double[] hitZ = rayHitZ; // Depth of the surface
+		double[] hitGradient = rayHitGradient; // Gradient of the surface in the view coordinates
+
+		// Pixels are processed tile by tile, so neighbour rays go through the same bricks
+		int tiles = side / BRICK_SIZE;
+		IntStream.range(0, tiles * tiles).parallel().forEach(tile -> {
+			int ti = tile / tiles * BRICK_SIZE, tj = tile % tiles * BRICK_SIZE;
+			for (int i = ti; i < ti + BRICK_SIZE; i++) {
+				for (int j = tj; j < tj + BRICK_SIZE; j++) {
+					hits[i * side + j] = castRay(i, j, hitZ, hitGradient) ? 1 : 0;
+				}
+			}
+		});
+
+		// Gather the surface pixels into the lanes in the same order as the other kernels
+		int lanes = 0;
+		for (int p = 0; p < side * side; p++) {
+			lanes += hits[p];
+		}
+		int[] pi = laneBuffers.pi, pj = laneBuffers.pj; // Pixel of every lane
+		double[] pz = laneBuffers.pz; // Depth of the surface of every lane
+		double[] gx = laneBuffers.gx, gy = laneBuffers.gy, gz = laneBuffers.gz; // Surface gradient
+		int lane = 0;
+
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				int p = i * side + j;
+				if (hits[p] != 0) {
+					pi[lane] = i;
+					pj[lane] = j;
+					pz[lane] = hitZ[p];
+					gx[lane] = hitGradient[p * 3];
+					gy[lane] = hitGradient[p * 3 + 1];
+					gz[lane] = hitGradient[p * 3 + 2];
+					lane++;
+				} else {
+					// Background color
+					setPixel(i, j, PixelBuffer.BLACK);
+				}
+			}
+		}
+
+		lightLanes(lanes, pi, pj, pz, gx, gy, gz);
+		return pixels.writeImage();
+	}
+
+	// Casts the ray of the pixel along Z of the view and stores the depth and the gradient of the first bone
+	// surface. View position (x, y, z) is the unrotated position multiplied by the rotation matrix, so the ray
+	// is mapped back with the transposed matrix and every step along the ray is one column of the matrix
+	private boolean castRay(int i, int j, double[] hitZ, double[] hitGradient) {
+		double kStart = 0, kEnd = side - 1; // Part of the ray which can meet bone elements
+
+		// Unrotated position of the ray at z = 0 and its change for every z step along every axis
+		double sx = rayStart(i, j, 0), sy = rayStart(i, j, 1), sz = rayStart(i, j, 2);
+		double dx = rotation(0, 2), dy = rotation(1, 2), dz = rotation(2, 2);
+
+		for (int a = 0; a < 3; a++) {
+			double start = a == 0 ? sx : a == 1 ? sy : sz;
+			double step = a == 0 ? dx : a == 1 ? dy : dz;
+
+			// Clip the ray by the box around the bone elements
+			int low = boneBlocks.boxLow[a], high = boneBlocks.boxHigh[a];
+			if (Math.abs(step) < 1e-9) {
+				if (start < low || start > high) {
+					return false;
+				}
+			} else {
+				double t1 = (low - start) / step;
+				double t2 = (high - start) / step;
+				kStart = Math.max(kStart, Math.min(t1, t2));
+				kEnd = Math.min(kEnd, Math.max(t1, t2));
+			}
+		}
+
+		double previous = 0; // Sample before the current one, samples outside of the bone blocks are 0
+
+		for (int k = (int) Math.ceil(kStart); k <= kEnd;) {
+			double x = sx + k * dx;
+			double y = sy + k * dy;
+			double z = sz + k * dz;
+
+			// Every sample in the empty brick or block is 0, jump to the last step inside it
+			int size = boneBlocks.emptySize(x, y, z);
+			if (size != 0) {
+				double exit = Math.min(blockExit(x, dx, size), Math.min(blockExit(y, dy, size), blockExit(z, dz, size)));
+				k += Math.max(1, (int) exit);
+				previous = 0;
+				continue;
+			}
+
+			double value = sampleUnrotated(x, y, z);
+			if (value >= RAY_HIT_VALUE) {
+				// Surface is between the previous and the current sample
+				double back = (value - RAY_HIT_VALUE) / (value - previous);
+				int p = i * side + j;
+				hitZ[p] = k - back;
+				x -= back * dx;
+				y -= back * dy;
+				z -= back * dz;
+
+				// Gradient of the unrotated data is turned into the view with the rotation matrix
+				double ux = sampleUnrotated(x + 1, y, z) - sampleUnrotated(x - 1, y, z);
+				double uy = sampleUnrotated(x, y + 1, z) - sampleUnrotated(x, y - 1, z);
+				double uz = sampleUnrotated(x, y, z + 1) - sampleUnrotated(x, y, z - 1);
+				for (int b = 0; b < 3; b++) {
+					hitGradient[p * 3 + b] = ux * rotation(0, b) + uy * rotation(1, b) + uz * rotation(2, b);
+				}
+				return true;
+			}
+			previous = value;
+			k++;
+		}
+		return false;
+	}
+
+	// Finds the gradient of the surface pixel (i, j) with depth z from the precomputed normals: the pixel is mapped
+	// back into the unrotated data and the normal of the nearest element is turned into the view with the rotation
+	// matrix. False if the element has no normal, then the gradient is found from the rotated data
+	private boolean precomputedGradient(int i, int j, int z, double[] result) {
+		int x = (int) Math.round(rayStart(i, j, 0) + z * rotation(0, 2));
+		int y = (int) Math.round(rayStart(i, j, 1) + z * rotation(1, 2));
+		int k = (int) Math.round(rayStart(i, j, 2) + z * rotation(2, 2));
+		if (!normals.get(x, y, k, result)) {
+			return false;
+		}
+
+		double nx = result[0], ny = result[1], nz = result[2];
+		for (int b = 0; b < 3; b++) {
+			result[b] = nx * rotation(0, b) + ny * rotation(1, b) + nz * rotation(2, b);
+		}
+		return true;
+	}
+
+	// Unrotated position of the ray of the pixel at z = 0 along the axis (0 - X, 1 - Y, 2 - Z)
+	private double rayStart(int i, int j, int axis) {
+		return (i - center) * rotation(axis, 0) + (j - center) * rotation(axis, 1) - center * rotation(axis, 2)
+				+ center;
+	}
+
+	// Number of steps after which the ray leaves the block with the following side (power of two) along one axis
+	private static double blockExit(double position, double step, int size) {
+		double inside = position - ((int) position & -size); // Distance from the start of the block
+		if (step > 0) {
+			return (size - inside) / step;
+		} else if (step < 0) {
+			return inside / -step;
+		}
+		return Double.MAX_VALUE;
+	}
+
+	// Element of the rotation part of the rotation matrix, the identity until the object is rotated
+	private double rotation(int row, int column) {
+		if (!rotated) {
+			return row == column ? 1 : 0;
+		}
+		return rotationMatrix[row][column];
+	}
+
+	// Finds the unrotated data value at the position with trilinear interpolation, 0 outside of the working volume
+	private double sampleUnrotated(double x, double y, double z) {
+		if (!(x >= 0 && y >= 0 && z >= 0 && x <= side - 1 && y <= side - 1 && z <= side - 1)) {
+			return 0;
+		}
+
+		// Nearest elements, the last element of the axis is used twice
+		int x0 = (int) x, y0 = (int) y, z0 = (int) z;
+		double fx = x - x0, fy = y - y0, fz = z - z0;
+		int v000, v100, v010, v110, v001, v101, v011, v111;
+
+		if ((x0 & BRICK_MASK) != BRICK_MASK && (y0 & BRICK_MASK) != BRICK_MASK && (z0 & BRICK_MASK) != BRICK_MASK) {
+			// Every element is in the same brick, so the next elements along the axes are at fixed distances
+			int p = layout.index(x0, y0, z0);
+			int dy = BRICK_SIZE, dz = BRICK_SIZE * BRICK_SIZE;
+			v000 = unrotatedData[p];
+			v100 = unrotatedData[p + 1];
+			v010 = unrotatedData[p + dy];
+			v110 = unrotatedData[p + dy + 1];
+			v001 = unrotatedData[p + dz];
+			v101 = unrotatedData[p + dz + 1];
+			v011 = unrotatedData[p + dz + dy];
+			v111 = unrotatedData[p + dz + dy + 1];
+		} else {
+			int x1 = Math.min(x0 + 1, side - 1), y1 = Math.min(y0 + 1, side - 1), z1 = Math.min(z0 + 1, side - 1);
+			v000 = element(x0, y0, z0);
+			v100 = element(x1, y0, z0);
+			v010 = element(x0, y1, z0);
+			v110 = element(x1, y1, z0);
+			v001 = element(x0, y0, z1);
+			v101 = element(x1, y0, z1);
+			v011 = element(x0, y1, z1);
+			v111 = element(x1, y1, z1);
+		}
+
+		// Interpolate along X, then Y and then Z
+		double c00 = v000 + fx * (v100 - v000);
+		double c10 = v010 + fx * (v110 - v010);
+		double c01 = v001 + fx * (v101 - v001);
+		double c11 = v011 + fx * (v111 - v011);
+		double c0 = c00 + fy * (c10 - c00);
+		double c1 = c01 + fy * (c11 - c01);
+		return c0 + fz * (c1 - c0);
+	}
+
+	// Element of the unrotated data
+	private int element(int x, int y, int z) {
+		return unrotatedData[layout.index(x, y, z)];
+	}
+
+	// Sets the color of the working volume pixel, at reduced levels it covers a square of the image pixels
+	private void setPixel(int i, int j, int argb) {
+		int scale = 1 << level;
+		pixels.fillSquare(i * scale, j * scale, scale, argb);
 	}
 
 	// Calculates gradient Vector for the selected position
 	private Vector calculateGradient(int x, int y, int z) {
 		Vector result = null;
 
+		// Precomputed normal is used if the element has it
+		if (precomputedGradient(x, y, z, surfaceGradient)) {
+			return new Vector(surfaceGradient[0], surfaceGradient[1], surfaceGradient[2]);
+		}
+
 		int x1, y1, z1, x2, y2, z2; // Elements values
-		int element = rotatedData[x][y][z]; // middle element value
+		int element = rotatedData[layout.index(x, y, z)]; // middle element value
 
-		// Finds x values
-		switch (x) {
-		case 0: {
+		// Finds x values, the side depends on the level so it can't be a switch case
+		if (x == 0) {
 			x1 = element;
-			x2 = rotatedData[x + 1][y][z];
-			break;
-		}
-		case IMAGE_SIDE_LENGTH - 1: {
-			x1 = rotatedData[x - 1][y][z];
+			x2 = rotatedData[layout.index(x + 1, y, z)];
+		} else if (x == side - 1) {
+			x1 = rotatedData[layout.index(x - 1, y, z)];
 			x2 = element;
-			break;
-		}
-		default: {
-			x1 = rotatedData[x - 1][y][z];
-			x2 = rotatedData[x + 1][y][z];
-		}
+		} else {
+			x1 = rotatedData[layout.index(x - 1, y, z)];
+			x2 = rotatedData[layout.index(x + 1, y, z)];
 		}
 
 		// Finds y values
-		switch (y) {
-		case 0: {
+		if (y == 0) {
 			y1 = element;
-			y2 = rotatedData[x][y + 1][z];
-			break;
-		}
-		case IMAGE_SIDE_LENGTH - 1: {
-			y1 = rotatedData[x][y - 1][z];
+			y2 = rotatedData[layout.index(x, y + 1, z)];
+		} else if (y == side - 1) {
+			y1 = rotatedData[layout.index(x, y - 1, z)];
 			y2 = element;
-			break;
-		}
-		default: {
-			y1 = rotatedData[x][y - 1][z];
-			y2 = rotatedData[x][y + 1][z];
-		}
+		} else {
+			y1 = rotatedData[layout.index(x, y - 1, z)];
+			y2 = rotatedData[layout.index(x, y + 1, z)];
 		}
 
 		// Finds z values
-		switch (z) {
-		case 0: {
+		if (z == 0) {
 			z1 = element;
-			z2 = rotatedData[x][y][z + 1];
-			break;
-		}
-		case IMAGE_SIDE_LENGTH - 1: {
-			z1 = rotatedData[x][y][z - 1];
+			z2 = rotatedData[layout.index(x, y, z + 1)];
+		} else if (z == side - 1) {
+			z1 = rotatedData[layout.index(x, y, z - 1)];
 			z2 = element;
-			break;
-		}
-		default: {
-			z1 = rotatedData[x][y][z - 1];
-			z2 = rotatedData[x][y][z + 1];
-		}
+		} else {
+			z1 = rotatedData[layout.index(x, y, z - 1)];
+			z2 = rotatedData[layout.index(x, y, z + 1)];
 		}
 
 		result = new Vector(x1, y1, z1, x2, y2, z2);
@@ -374,28 +883,33 @@ public class GradientRenderer {
 	// Finds pixels for which is required to make rendering
 	// Matrix with integer value which contains z pixel position
 	private int[][] findRequiredPixels() {
-		int[][] result = new int[IMAGE_SIDE_LENGTH][IMAGE_SIDE_LENGTH];
+		int[][] result = requiredPixels;
 
 		int element;
 		boolean valueFound;
-		for (int i = 0; i < IMAGE_SIDE_LENGTH; i++) {
-			for (int j = 0; j < IMAGE_SIDE_LENGTH; j++) {
-				valueFound = false;
-				for (int k = 0; k < IMAGE_SIDE_LENGTH; k++) {
-					element = rotatedData[i][j][k];
-
-					// Found bone value so save it's z coordinate
-					if (element != 0) {
-						result[i][j] = k;
-						valueFound = true;
-						break;
+		// Pixels are processed tile by tile, so neighbour rays go through the same bricks
+		for (int ti = 0; ti < side; ti += BRICK_SIZE) {
+			for (int tj = 0; tj < side; tj += BRICK_SIZE) {
+				for (int i = ti; i < ti + BRICK_SIZE; i++) {
+					for (int j = tj; j < tj + BRICK_SIZE; j++) {
+						valueFound = false;
+						for (int k = nextBoneZ(i, j, 0); k < side; k = nextBoneZ(i, j, k + 1)) {
+							element = rotatedData[layout.index(i, j, k)];
+
+							// Found bone value so save it's z coordinate
+							if (element != 0) {
+								result[i][j] = k;
+								valueFound = true;
+								break;
+							}
+						}
+
+						// Not found required element so set it to -1
+						if (!valueFound) {
+							result[i][j] = -1;
+						}
 					}
 				}
-
-				// Not found required element so set it to -1
-				if (!valueFound) {
-					result[i][j] = -1;
-				}
 			}
 		}
 
@@ -448,58 +962,130 @@ public class GradientRenderer {
 		dyRotation[1][2] = -Math.sin(Math.toRadians(yAngle));
 		dyRotation[2][1] = Math.sin(Math.toRadians(yAngle));
 
-		// Change values of the rotation matrix and rotate data using rotation matrix
+		// Change values of the rotation matrix, the data is rotated when it is rendered
 		rotationMatrix = matrixMultiplication(dxRotation, dyRotation);
-		rotateData();
+		rotated = true;
+		rotatedDataValid = false;
+	}
+
+	// Selects if the rays are cast through the unrotated data instead of rotating it
+	public void setRayCasting(boolean rayCasting) {
+		this.rayCasting = rayCasting;
+	}
+
+	public boolean isRayCasting() {
+		return rayCasting;
 	}
 
 	// Rotates data according to x, y and z rotation
 	private void rotateData() {
+		int slabs = side / BRICK_SIZE; // Number of brick slabs along Z
+
+		// Reuse the rotated data of the level and fill it brick by brick, so rotated neighbours are written close
+		// to each other
+		clearRotatedData();
+		if (PARALLEL_ROTATION) {
+			// Voxels of the slabs with one slab between them are more than BRICK_SIZE apart after the rotation, and
+			// every voxel changes the elements less than 2 elements away along every axis, so such slabs never add
+			// to the same element. Even slabs are rotated in parallel, then odd ones. Elements are sums of integers,
+			// they don't depend on the order, so the data is the same as after the serial rotation
+			for (int parity = 0; parity < 2; parity++) {
+				int first = parity;
+				IntStream.range(0, (slabs - first + 1) / 2).parallel().forEach(n -> rotateSlab(first + 2 * n));
+			}
+		} else {
+			for (int slab = 0; slab < slabs; slab++) {
+				rotateSlab(slab);
+			}
+		}
+
+		// Find bricks of the new data which contain bone elements
+		occupancy.update(rotatedData);
+	}
+
+	// Rotates the bricks of the unrotated data with the following Z brick coordinate
+	private void rotateSlab(int slab) {
 		int element;
-		double[][] transpMatrix = new double[4][4]; // Matrix containing voxel data
-		int xc, yc, zc; // Coordinates according to the center
-		double newX, newY, newZ; // New possible coordinates including values to the right of the decimal point
+		int bk = slab * BRICK_SIZE;
+		int bricks = side / BRICK_SIZE; // Number of bricks along every axis
+		int position = slab * bricks * bricks * BRICK_SIZE * BRICK_SIZE * BRICK_SIZE; // Position of the current element, bricks are stored one after another
+
+		for (int bj = 0; bj < side; bj += BRICK_SIZE) {
+			for (int bi = 0; bi < side; bi += BRICK_SIZE) {
+				// Bricks without bone elements don't change the rotated data
+				if (!unrotatedOccupancy.mayContain(bi, bj, bk, 1, Integer.MAX_VALUE)) {
+					position += BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+					continue;
+				}
 
-		// Generate new rotate data and fill it
-		rotatedData = new int[IMAGE_SIDE_LENGTH][IMAGE_SIDE_LENGTH][IMAGE_SIDE_LENGTH];
-		for (int i = 0; i < IMAGE_SIDE_LENGTH; i++) {
-			for (int j = 0; j < IMAGE_SIDE_LENGTH; j++) {
-				for (int k = 0; k < IMAGE_SIDE_LENGTH; k++) {
-					element = unrotatedData[i][j][k];
-
-					if (element != 0) {
-						// First find element position according to the data center
-						xc = i - X_CENTER;
-						yc = j - Y_CENTER;
-						zc = k - Z_CENTER;
-
-						// Fill matrix with data to multiply with rotation matrix
-						transpMatrix[0][0] = 1;
-						transpMatrix[1][1] = 1;
-						transpMatrix[2][2] = 1;
-						transpMatrix[3][3] = 1;
-						transpMatrix[3][0] = xc;
-						transpMatrix[3][1] = yc;
-						transpMatrix[3][2] = zc;
-
-						// Multiplication itself
-						transpMatrix = matrixMultiplication(transpMatrix, rotationMatrix);
-
-						// Get new values after rotation using rotation matrix
-						newX = transpMatrix[3][0] + X_CENTER;
-						newY = transpMatrix[3][1] + Y_CENTER;
-						newZ = transpMatrix[3][2] + Z_CENTER;
-
-						// Interpolation implementation for voxels to set their values correctly
-						interpVoxelSetter(newX, newY, newZ, element);
-						// addToRotatedVoxel((int) newX, (int) newY, (int) newZ, element);
+				for (int k = bk; k < bk + BRICK_SIZE; k++) {
+					for (int j = bj; j < bj + BRICK_SIZE; j++) {
+						for (int i = bi; i < bi + BRICK_SIZE; i++) {
+							element = unrotatedData[position++];
 
+							if (element != 0) {
+								rotateVoxel(i, j, k, element);
+							}
+						}
 					}
 				}
 			}
 		}
 	}
 
+	// Switches to the rotated data of the current level and sets every element to 0, it is made when it is
+	// required first. Only the bricks with bone elements after the previous rotation are cleared, slabs of bricks
+	// are cleared in parallel
+	private void clearRotatedData() {
+		if (levelRotatedData[level] == null) {
+			levelRotatedData[level] = new int[layout.getCapacity()];
+			levelRotatedOccupancy[level] = MinMaxOctree.build(levelRotatedData[level], layout);
+		}
+		int[] data = levelRotatedData[level];
+		MinMaxOctree previous = levelRotatedOccupancy[level];
+		int brickVolume = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+		int bricks = side / BRICK_SIZE; // Number of bricks along every axis
+
+		IntStream.range(0, bricks).parallel().forEach(slab -> {
+			int position = slab * bricks * bricks * brickVolume;
+			for (int bj = 0; bj < side; bj += BRICK_SIZE) {
+				for (int bi = 0; bi < side; bi += BRICK_SIZE) {
+					if (previous.mayContain(bi, bj, slab * BRICK_SIZE, 1, Integer.MAX_VALUE)) {
+						Arrays.fill(data, position, position + brickVolume, 0);
+					}
+					position += brickVolume;
+				}
+			}
+		});
+
+		rotatedData = data;
+		occupancy = previous;
+	}
+
+	// Rotates one voxel of unrotated data and adds it to the rotated data
+	private void rotateVoxel(int i, int j, int k, int element) {
+		int xc, yc, zc; // Coordinates according to the center
+		double newX, newY, newZ; // New possible coordinates including values to the right of the decimal point
+
+		// First find element position according to the data center
+		xc = i - center;
+		yc = j - center;
+		zc = k - center;
+
+		// Row (xc, yc, zc, 1) multiplied by the rotation matrix, the same sums as the matrix multiplication
+		// without the matrix of the voxel
+		newX = xc * rotationMatrix[0][0] + yc * rotationMatrix[1][0] + zc * rotationMatrix[2][0] + rotationMatrix[3][0]
+				+ center;
+		newY = xc * rotationMatrix[0][1] + yc * rotationMatrix[1][1] + zc * rotationMatrix[2][1] + rotationMatrix[3][1]
+				+ center;
+		newZ = xc * rotationMatrix[0][2] + yc * rotationMatrix[1][2] + zc * rotationMatrix[2][2] + rotationMatrix[3][2]
+				+ center;
+
+		// Interpolation implementation for voxels to set their values correctly
+		interpVoxelSetter(newX, newY, newZ, element);
+		// addToRotatedVoxel((int) newX, (int) newY, (int) newZ, element);
+	}
+
 	// After the data was rotated it should be interpolated correctly
 	private void interpVoxelSetter(double newX, double newY, double newZ, int element) {
 		int x, y, z; // Starting pixel position
@@ -516,7 +1102,6 @@ public class GradientRenderer {
 		dz = z - newZ;
 
 		double resX, resY, resZ; // Final vector values
-		Vector calcVector; // Vector to calculate voxel value
 		for (int i = 0; i < 2; i++) {
 			for (int j = 0; j < 2; j++) {
 				for (int k = 0; k < 2; k++) {
@@ -538,10 +1123,9 @@ public class GradientRenderer {
 						resZ = dz;
 					}
 
-					// Generate and calculate vector
-					calcVector = new Vector(resX, resY, resZ);
-					//calcVector = calcVector.getNormalizedVector();
-					addToRotatedVoxel(x + i, y + j, z + k, (int) (element * calcVector.getLength()));
+					// Length of the vector, the same as Vector.getLength
+					addToRotatedVoxel(x + i, y + j, z + k,
+							(int) (element * Math.sqrt(resX * resX + resY * resY + resZ * resZ)));
 				}
 			}
 		}
@@ -550,11 +1134,11 @@ public class GradientRenderer {
 	// Sets voxel data at the following coordinate to selected element
 	private void addToRotatedVoxel(int x, int y, int z, int element) {
 		// Check if out of bounds
-		boolean xCheck = x >= 0 && x < IMAGE_SIDE_LENGTH;
-		boolean yCheck = y >= 0 && y < IMAGE_SIDE_LENGTH;
-		boolean zCheck = z >= 0 && z < IMAGE_SIDE_LENGTH;
+		boolean xCheck = x >= 0 && x < side;
+		boolean yCheck = y >= 0 && y < side;
+		boolean zCheck = z >= 0 && z < side;
 		if (xCheck && yCheck && zCheck) {
-			rotatedData[x][y][z] += element;
+			rotatedData[layout.index(x, y, z)] += element;
 		}
 	}
 
@@ -618,4 +1202,116 @@ public class GradientRenderer {
 
 		return resultMatrix;
 	}
+
+	// Parts of the unrotated data where a trilinear sample can be above 0: blocks with bone elements and the
+	// blocks before them, samples near the end of a block use the elements of the next blocks. Rays are clipped by
+	// the box around them, jump over the empty bricks and then over the empty ray blocks
+	private static class BoneBlocks {
+		private final int blocks, bricks; // Number of ray blocks and bricks along every axis
+		private final boolean[] blockUsed; // Whether the ray block can have samples above 0
+		private final boolean[] brickUsed; // Whether any ray block of the brick can have samples above 0
+		private final int[] boxLow = new int[3], boxHigh = new int[3]; // Box around the used ray blocks
+
+		// Constructor which finds the used blocks of the data, empty bricks are not read
+		private BoneBlocks(int[] data, MinMaxOctree occupancy, int side) {
+			blocks = side / RAY_BLOCK_SIZE;
+			bricks = side / BRICK_SIZE;
+			blockUsed = new boolean[blocks * blocks * blocks];
+			brickUsed = new boolean[bricks * bricks * bricks];
+			int shift = Integer.numberOfTrailingZeros(RAY_BLOCK_SIZE);
+			int position = 0; // Position of the current element, bricks are stored one after another
+
+			for (int bk = 0; bk < side; bk += BRICK_SIZE) {
+				for (int bj = 0; bj < side; bj += BRICK_SIZE) {
+					for (int bi = 0; bi < side; bi += BRICK_SIZE) {
+						if (!occupancy.mayContain(bi, bj, bk, 1, Integer.MAX_VALUE)) {
+							position += BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+							continue;
+						}
+
+						for (int k = bk; k < bk + BRICK_SIZE; k++) {
+							for (int j = bj; j < bj + BRICK_SIZE; j++) {
+								for (int i = bi; i < bi + BRICK_SIZE; i++) {
+									if (data[position++] != 0) {
+										use(i >> shift, j >> shift, k >> shift);
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+
+			// Box around the used blocks, it is empty if there are no bone elements
+			Arrays.fill(boxLow, side);
+			Arrays.fill(boxHigh, -1);
+			for (int z = 0; z < blocks; z++) {
+				for (int y = 0; y < blocks; y++) {
+					for (int x = 0; x < blocks; x++) {
+						if (blockUsed[(z * blocks + y) * blocks + x]) {
+							int[] block = { x, y, z };
+							for (int a = 0; a < 3; a++) {
+								boxLow[a] = Math.min(boxLow[a], block[a] * RAY_BLOCK_SIZE);
+								boxHigh[a] = Math.max(boxHigh[a], Math.min(side - 1, (block[a] + 1) * RAY_BLOCK_SIZE));
+							}
+						}
+					}
+				}
+			}
+		}
+
+		// Marks the block with a bone element and the blocks before it
+		private void use(int x, int y, int z) {
+			int scale = BRICK_SIZE / RAY_BLOCK_SIZE;
+			for (int k = Math.max(0, z - 1); k <= z; k++) {
+				for (int j = Math.max(0, y - 1); j <= y; j++) {
+					for (int i = Math.max(0, x - 1); i <= x; i++) {
+						blockUsed[(k * blocks + j) * blocks + i] = true;
+						brickUsed[((k / scale) * bricks + j / scale) * bricks + i / scale] = true;
+					}
+				}
+			}
+		}
+
+		// Side of the empty brick or ray block which contains the position, 0 if samples there can be above 0
+		private int emptySize(double x, double y, double z) {
+			int i = Math.min(blocks - 1, (int) x / RAY_BLOCK_SIZE);
+			int j = Math.min(blocks - 1, (int) y / RAY_BLOCK_SIZE);
+			int k = Math.min(blocks - 1, (int) z / RAY_BLOCK_SIZE);
+			int scale = BRICK_SIZE / RAY_BLOCK_SIZE;
+
+			if (!brickUsed[((k / scale) * bricks + j / scale) * bricks + i / scale]) {
+				return BRICK_SIZE;
+			}
+			return blockUsed[(k * blocks + j) * blocks + i] ? 0 : RAY_BLOCK_SIZE;
+		}
+	}
+
+	// Arrays of the lighting kernel lanes, they are made once for the largest image and reused by every frame
+	private static class LaneBuffers {
+		private final int[] pi, pj; // Pixel of every lane
+		private final double[] pz; // Depth of the surface
+		private final double[] gx, gy, gz; // Surface gradient
+		private final double[] lx, ly, lz; // Light vector
+		private final double[] ex, ey, ez; // Eye vector
+		private final double[] diffuse, specular; // Clamped dot products
+
+		// Constructor which creates the arrays with the following number of lanes
+		private LaneBuffers(int capacity) {
+			pi = new int[capacity];
+			pj = new int[capacity];
+			pz = new double[capacity];
+			gx = new double[capacity];
+			gy = new double[capacity];
+			gz = new double[capacity];
+			lx = new double[capacity];
+			ly = new double[capacity];
+			lz = new double[capacity];
+			ex = new double[capacity];
+			ey = new double[capacity];
+			ez = new double[capacity];
+			diffuse = new double[capacity];
+			specular = new double[capacity];
+		}
+	}
 }
@@ -1,373 +1,196 @@
-import java.util.ArrayList;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
-import javafx.scene.paint.Color;
-import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 
 /**
  * Generates required image array with standard rendering and volume rendering
- * (Includes Q1 and Q2 solutions)
+ * (Includes Q1 and Q2 solutions). Images can be rendered from a reduced level
+ * of the volume pyramid. Q1 slices are read when they are requested and kept
+ * in a bounded cache (SliceCache), their images are made with the current
+ * window / level when they are shown. Volume rendering keeps the materials of
+ * every ray (MaterialRuns), so an image with any skin opacity is composited
+ * when it is shown. Intensity projections are one image which is reduced
+ * along the axis when the collection is created (IntensityProjection), it is
+ * shown with the window / level the same way as Q1 slices
  * 
  * @author s0s100
  *
  */
 
 public class ImageCollection {
-	private static final Color boneColor = new Color(1d, 1d, 1d, 0.8d); // Color of the bone element
-	public static final int SKIP_OPACITY_SCALE = 101; // Max skin opacity value
+	public static final int SKIP_OPACITY_SCALE = 101; // Number of skin opacity percents shown by the index
 
-	private final ArrayList<WritableImage> images; // Set of generated images
+	private final MaterialRuns runs; // Materials of the rays which are composited with the skin opacity (Q2), null for Q1
+	private final PixelBuffer runPixels; // Buffer of the composited Q2 images, reused by every image, null for Q1
+	private final SliceCache slices; // Raw slices which are shown with the window / level (Q1), null for Q2
+	private final short[] projection; // Projected values shown with the window / level, null for Q1 and Q2
+	private final int size; // Number of images in the collection
+	private int imageWidth, imageHeight; // Size of Q1 and projection images
+	private WindowLevel windowLevel; // Contrast of Q1 and projection images
 
 	// Constructor which generates slice image collection using provided information
 	public ImageCollection(SliceWay sliceWay, SliceType sliceType, VolumeData data) {
-		images = new ArrayList<WritableImage>();
+		this(sliceWay, sliceType, data, 0);
+	}
+
+	// Constructor which generates slice image collection from the following level of the volume pyramid
+	public ImageCollection(SliceWay sliceWay, SliceType sliceType, VolumeData data, int level) {
 		switch (sliceType) {
 
-		// Q1 solutions
+		// Q1 solutions, nothing is read until the images are requested
 		case NormalSlice: {
-			switch (sliceWay) {
-			case X_AXIS: {
-				generateImagesX(data);
-				break;
-			}
-			case Y_AXIS: {
-				generateImagesY(data);
-				break;
-			}
-			case Z_AXIS: {
-				generateImagesZ(data);
-				break;
-			}
-			}
+			VolumeSource volume = data.getVolume(level);
+			imageWidth = volume.getSliceWidth(sliceWay);
+			imageHeight = volume.getSliceHeight(sliceWay);
+			windowLevel = WindowLevel.ofRange(data.getMin(), data.getMax());
+			slices = new SliceCache(createSliceReader(sliceWay, volume), volume.getDepth(sliceWay),
+					SliceCache.DEFAULT_CAPACITY);
+			runs = null;
+			runPixels = null;
+			projection = null;
+			size = volume.getDepth(sliceWay);
 			break;
 		}
 
-		// Q2 solutions
-		case VolumeRender: {
-			switch (sliceWay) {
-			case X_AXIS: {
-				generateVolumeRenderX(data);
-				break;
-			}
-			case Y_AXIS: {
-				generateVolumeRenderY(data);
-				break;
-			}
-			case Z_AXIS: {
-				generateVolumeRenderZ(data);
-				break;
-			}
-			}
+		// Intensity projections, the only image is reduced right away
+		case MaximumProjection:
+		case MinimumProjection:
+		case AverageProjection: {
+			VolumeSource volume = data.getVolume(level);
+			imageWidth = volume.getSliceWidth(sliceWay);
+			imageHeight = volume.getSliceHeight(sliceWay);
+			windowLevel = WindowLevel.ofRange(data.getMin(), data.getMax());
+			projection = new short[imageWidth * imageHeight];
+			IntensityProjection.project(sliceWay, sliceType, volume, projection);
+			slices = null;
+			runs = null;
+			runPixels = null;
+			size = 1;
 			break;
 		}
-		}
-	}
-
-	// Gets image with following index
-	public WritableImage getImageWithIndex(int index) {
-		return images.get(index);
-	}
-
-	// Gets an array with all generated images
-	public ArrayList<WritableImage> getImages() {
-		return images;
-	}
-
-	// Checks if the value is between following boundaries
-	private static boolean isBetween(int num, int lowerValue, int higherValue) {
-		return (num > lowerValue) && (num < higherValue);
-	}
 
-	// Creates images for X axis using pixel writer with volume data (Q1)
-	private void generateImagesX(VolumeData data) {
-		int imageWidth = VolumeData.CT_Y_AXIS;
-		int imageHeight = VolumeData.CT_Z_AXIS;
-		short min = data.getMin();
-		short max = data.getMax();
-		short dataPiece;
-		float colorNum;
-		Color color;
-
-		// Create image for every possible X value
-		for (int i = 0; i < VolumeData.CT_X_AXIS; i++) {
-			WritableImage image = new WritableImage(imageWidth, imageHeight);
-			PixelWriter image_writer = image.getPixelWriter();
-
-			for (int j = 0; j < VolumeData.CT_Y_AXIS; j++) {
-				for (int k = 0; k < VolumeData.CT_Z_AXIS; k++) {
-					dataPiece = data.getVolume()[i][j][k];// Get pixel data
-					colorNum = (float) (dataPiece - min) / (max - min); // Color to set the pixel
-					color = new Color(colorNum, colorNum, colorNum, 1.0f);
-					image_writer.setColor(j, k, color);
+		// Q2 solutions, the runs are read from the derived data cache if they were found before. Streamed volumes are
+		// rendered from the stored pyramid level
+		default: {
+			int storedLevel = data.findStoredLevel(level);
+			VolumeSource volume = data.getVolume(storedLevel);
+			DerivedDataCache cache = data.getDerivedCache();
+			String key = MaterialRuns.getCacheKey(sliceWay, storedLevel);
+			int[] cachedValues = cache != null ? cache.readValues(key) : null;
+			MaterialRuns cachedRuns = cachedValues != null ? MaterialRuns.fromValues(volume.getSliceWidth(sliceWay),
+					volume.getSliceHeight(sliceWay), cachedValues) : null;
+
+			if (cachedRuns != null) {
+				runs = cachedRuns;
+				System.out.println("Q2 " + sliceWay + " runs are read from the cache with a size = " + runs.getRunCount());
+			} else {
+				runs = MaterialRuns.build(sliceWay, data.getMaterials(storedLevel), data.getOctree(storedLevel));
+				System.out.println("Q2 " + sliceWay + " runs are found with a size = " + runs.getRunCount());
+
+				// Every stored value should fit into 16 bits
+				if (cache != null && volume.getDepth(sliceWay) <= Short.MAX_VALUE) {
+					cache.writeValues(key, runs.toValues());
 				}
 			}
-
-			images.add(image);
+			runPixels = new PixelBuffer(volume.getSliceWidth(sliceWay), volume.getSliceHeight(sliceWay));
+			slices = null;
+			projection = null;
+			size = SKIP_OPACITY_SCALE;
 		}
-
-		System.out.println("Q1 X array is rendered with a size = " + images.size());
-	}
-
-	// Creates images for Y axis using pixel writer with volume data
-	private void generateImagesY(VolumeData data) {
-		int imageWidth = VolumeData.CT_X_AXIS;
-		int imageHeight = VolumeData.CT_Z_AXIS;
-		short min = data.getMin();
-		short max = data.getMax();
-		short dataPiece;
-		float colorNum;
-		Color color;
-
-		// Create image for every possible Y value
-		for (int j = 0; j < VolumeData.CT_Y_AXIS; j++) {
-			WritableImage image = new WritableImage(imageWidth, imageHeight);
-			PixelWriter image_writer = image.getPixelWriter();
-
-			for (int i = 0; i < VolumeData.CT_X_AXIS; i++) {
-				for (int k = 0; k < VolumeData.CT_Z_AXIS; k++) {
-					dataPiece = data.getVolume()[i][j][k]; // Get pixel data
-					colorNum = (float) (dataPiece - min) / (max - min); // Color to set the pixel
-					color = new Color(colorNum, colorNum, colorNum, 1.0f);
-					image_writer.setColor(i, k, color);
-				}
-			}
-
-			images.add(image);
 		}
-
-		System.out.println("Q1 Y array is rendered with a size = " + images.size());
 	}
 
-	// Creates images for Z axis using pixel writer with volume data
-	private void generateImagesZ(VolumeData data) {
-		int imageWidth = VolumeData.CT_X_AXIS;
-		int imageHeight = VolumeData.CT_Y_AXIS;
-		short min = data.getMin();
-		short max = data.getMax();
-		short dataPiece;
-		float colorNum;
-		Color color;
-
-		// Create image for every possible Z value
-		for (int k = 0; k < VolumeData.CT_Z_AXIS; k++) {
-			WritableImage image = new WritableImage(imageWidth, imageHeight);
-			PixelWriter image_writer = image.getPixelWriter();
+	// Creates collections of every axis in SliceWay order, concurrently they are created by the fork-join pool
+	public static ImageCollection[] createAll(SliceType sliceType, VolumeData data, boolean concurrently) {
+		SliceWay[] sliceWays = SliceWay.values();
+		ImageCollection[] result = new ImageCollection[sliceWays.length];
+		IntStream axes = IntStream.range(0, sliceWays.length);
 
-			for (int i = 0; i < VolumeData.CT_X_AXIS; i++) {
-				for (int j = 0; j < VolumeData.CT_Y_AXIS; j++) {
-					dataPiece = data.getVolume()[i][j][k]; // Get pixel data
-					colorNum = (float) (dataPiece - min) / (max - min); // Color to set the pixel
-					color = new Color(colorNum, colorNum, colorNum, 1.0f);
-					image_writer.setColor(i, j, color);
-				}
-			}
-
-			images.add(image);
-		}
-
-		System.out.println("Q1 Z array is rendered with a size = " + images.size());
+		(concurrently ? axes.parallel() : axes).forEach(axis -> {
+			result[axis] = new ImageCollection(sliceWays[axis], sliceType, data);
+		});
+		return result;
 	}
 
-	// Creates images for X axis using pixel writer with generated volume render
-	private void generateVolumeRenderX(VolumeData data) {
-		int imageWidth = VolumeData.CT_Y_AXIS;
-		int imageHeight = VolumeData.CT_Z_AXIS;
-
-		WritableImage image; // Result image
-		PixelWriter image_writer; // Pixel writer to make the image
-		Color currentColor = null; // Will be used to determine current color change
-		Color skinColor = null; // Will be defined through the loop
-		Color colorToUse; // Color which will be used at pixel writer
-		double r, g, b, transp; // final color and accumulating transparency
-		double skinOpacity;
-		int curElem;
-
-		// Also include skin opacity calculations
-		for (int s = 0; s < SKIP_OPACITY_SCALE; s++) {
-			image = new WritableImage(imageWidth, imageHeight);
-			image_writer = image.getPixelWriter();
-
-			skinOpacity = (double) s / 100;
-			skinColor = new Color(1d, 0.79d, 0.6d, skinOpacity);
-
-			// Loop through every pixel
-			for (int j = 0; j < VolumeData.CT_Y_AXIS; j++) {
-				for (int k = 0; k < VolumeData.CT_Z_AXIS; k++) {
-					transp = 1d;
-					r = 0d;
-					g = 0d;
-					b = 0d;
-
-					// Parse through every value of the X axis
-					for (int i = 0; i < VolumeData.CT_X_AXIS; i++) {
-						curElem = data.getVolume()[i][j][k];
-
-						if (isBetween(curElem, Integer.MIN_VALUE, -300)) {
-							currentColor = null;
-						} else if (isBetween(curElem, -301, 50)) {
-							currentColor = skinColor;
-						} else if (isBetween(curElem, 49, 300)) {
-							currentColor = null;
-						} else if (isBetween(curElem, 299, 4097)) {
-							currentColor = boneColor;
-						}
-
-						if (currentColor != null) {
-							r += transp * currentColor.getOpacity() * currentColor.getRed();
-							g += transp * currentColor.getOpacity() * currentColor.getGreen();
-							b += transp * currentColor.getOpacity() * currentColor.getBlue();
-							transp *= (1d - currentColor.getOpacity());
-						}
-					}
-
-					// Fixes the problem then r goes out of bounds
-					r = Math.min(1.0, r);
-					g = Math.min(1.0, g);
-					b = Math.min(1.0, b);
-
-					colorToUse = new Color(r, g, b, 1d);
-					image_writer.setColor(j, k, colorToUse);
-				}
-			}
-
-			images.add(image);
+	// Gets image with following index, Q1 and projection images are made with the current window / level.
+	// Q2 image is composited with the skin opacity of 'index' percents
+	public WritableImage getImageWithIndex(int index) {
+		if (projection != null) {
+			return renderSlice(projection, imageWidth, imageHeight, imageHeight, windowLevel);
+		}
+		if (slices == null) {
+			return getImageWithOpacity((double) index / (SKIP_OPACITY_SCALE - 1));
 		}
-		System.out.println("Q2 X array is rendered with a size = " + images.size());
+		return renderSlice(slices.getSlice(index), imageWidth, imageHeight, imageHeight, windowLevel);
 	}
 
-	// Creates images for Y axis using pixel writer with generated volume render
-	private void generateVolumeRenderY(VolumeData data) {
-		int imageWidth = VolumeData.CT_X_AXIS;
-		int imageHeight = VolumeData.CT_Z_AXIS;
-
-		WritableImage image; // Result image
-		PixelWriter image_writer; // Pixel writer to make the image
-		Color currentColor = null; // Will be used to determine current color change
-		Color skinColor = null; // Will be defined through the loop
-		Color colorToUse; // Color which will be used at pixel writer
-		double r, g, b, transp; // final color and accumulating transparency
-		double skinOpacity;
-		int curElem;
-
-		// Also include skin opacity calculations
-		for (int s = 0; s < SKIP_OPACITY_SCALE; s++) {
-			image = new WritableImage(imageWidth, imageHeight);
-			image_writer = image.getPixelWriter();
+	// Gets Q2 image with the following skin opacity (0 - 1), it is composited into the buffer of the collection
+	public synchronized WritableImage getImageWithOpacity(double skinOpacity) {
+		runs.render(skinOpacity, runPixels);
+		return runPixels.toImage();
+	}
 
-			skinOpacity = (double) s / 100;
-			skinColor = new Color(1d, 0.79d, 0.6d, skinOpacity);
+	// Gets number of images in the collection
+	public int getSize() {
+		return size;
+	}
 
-			// Loop through every pixel
-			for (int i = 0; i < VolumeData.CT_X_AXIS; i++) {
-				for (int k = 0; k < VolumeData.CT_Z_AXIS; k++) {
-					transp = 1d;
-					r = 0d;
-					g = 0d;
-					b = 0d;
+	// Gets the cache of the slices which are read on demand, null if every image is generated
+	public SliceCache getSliceCache() {
+		return slices;
+	}
 
-					// Parse through every value of the X axis
-					for (int j = 0; j < VolumeData.CT_Y_AXIS; j++) {
-						curElem = data.getVolume()[i][j][k];
+	// Gets contrast of Q1 and projection images
+	public WindowLevel getWindowLevel() {
+		return windowLevel;
+	}
 
-						if (isBetween(curElem, Integer.MIN_VALUE, -300)) {
-							currentColor = null;
-						} else if (isBetween(curElem, -301, 50)) {
-							currentColor = skinColor;
-						} else if (isBetween(curElem, 49, 300)) {
-							currentColor = null;
-						} else if (isBetween(curElem, 299, 4097)) {
-							currentColor = boneColor;
-						}
+	// Sets contrast of Q1 and projection images, it is used by the next requested images
+	public void setWindowLevel(WindowLevel windowLevel) {
+		this.windowLevel = windowLevel;
+	}
 
-						// Change values according to the lecture
-						if (currentColor != null) {
-							r += transp * currentColor.getOpacity() * currentColor.getRed();
-							g += transp * currentColor.getOpacity() * currentColor.getGreen();
-							b += transp * currentColor.getOpacity() * currentColor.getBlue();
-							transp *= (1d - currentColor.getOpacity());
-						}
-					}
+	// Creates reader of Q1 slices along the axis. It is used by several threads
+	private static IntFunction<short[]> createSliceReader(SliceWay sliceWay, VolumeSource volume) {
+		int length = volume.getSliceWidth(sliceWay) * volume.getSliceHeight(sliceWay);
 
-					// Fixes the problem then r goes out of bounds
-					r = Math.min(1.0, r);
-					g = Math.min(1.0, g);
-					b = Math.min(1.0, b);
+		return index -> {
+			short[] slice = new short[length]; // Volume data of the slice
+			volume.copySlice(sliceWay, index, slice);
+			return slice;
+		};
+	}
 
-					colorToUse = new Color(r, g, b, 1d);
-					image_writer.setColor(i, k, colorToUse);
-				}
-			}
+	// Renders one Q1 image of the volume which may be still loading, Z slices which are not loaded yet are black
+	public static WritableImage renderSlice(SliceWay sliceWay, VolumeData data, int index) {
+		VolumeSource volume = data.getVolume();
+		VolumeStatistics statistics = data.getStatistics(); // Statistics of the loaded slices
+		int loadedSlices = data.getLoadedSlices();
+		int imageWidth = volume.getSliceWidth(sliceWay);
+		int imageHeight = volume.getSliceHeight(sliceWay);
+		short[] slice = new short[imageWidth * imageHeight];
+
+		// Image rows of X and Y slices are Z slices, Z slice is loaded as a whole
+		int loadedRows;
+		if (sliceWay == SliceWay.Z_AXIS) {
+			loadedRows = index < loadedSlices ? imageHeight : 0;
+		} else {
+			loadedRows = loadedSlices;
+		}
 
-			images.add(image);
+		if (loadedRows > 0) {
+			volume.copySlice(sliceWay, index, slice);
 		}
-		System.out.println("Q2 Y array is rendered with a size = " + images.size());
+		return renderSlice(slice, imageWidth, imageHeight, loadedRows,
+				WindowLevel.ofRange(statistics.getMin(), statistics.getMax()));
 	}
 
-	// Creates images for Z axis using pixel writer with generated volume render
-	private void generateVolumeRenderZ(VolumeData data) {
-		int imageWidth = VolumeData.CT_X_AXIS;
-		int imageHeight = VolumeData.CT_Y_AXIS;
-
-		WritableImage image; // Result image
-		PixelWriter image_writer; // Pixel writer to make the image
-		Color currentColor = null; // Will be used to determine current color change
-		Color skinColor = null; // Will be defined through the loop
-		Color colorToUse; // Color which will be used at pixel writer
-		double r, g, b, transp; // final color and accumulating transparency
-		double skinOpacity;
-		int curElem;
-
-		// Also include skin opacity calculations
-		for (int s = 0; s < SKIP_OPACITY_SCALE; s++) {
-			image = new WritableImage(imageWidth, imageHeight);
-			image_writer = image.getPixelWriter();
-
-			skinOpacity = (double) s / 100;
-			skinColor = new Color(1d, 0.79d, 0.6d, skinOpacity);
-
-			// Loop through every pixel
-			for (int i = 0; i < VolumeData.CT_X_AXIS; i++) {
-				for (int j = 0; j < VolumeData.CT_Y_AXIS; j++) {
-					transp = 1d;
-					r = 0d;
-					g = 0d;
-					b = 0d;
-
-					// Parse through every value of the X axis
-					for (int k = 0; k < VolumeData.CT_Z_AXIS; k++) {
-						curElem = data.getVolume()[i][j][k];
-
-						if (isBetween(curElem, Integer.MIN_VALUE, -300)) {
-							currentColor = null;
-						} else if (isBetween(curElem, -301, 50)) {
-							currentColor = skinColor;
-						} else if (isBetween(curElem, 49, 300)) {
-							currentColor = null;
-						} else if (isBetween(curElem, 299, 4097)) {
-							currentColor = boneColor;
-						}
-
-						// Change values according to the lecture
-						if (currentColor != null) {
-							r += transp * currentColor.getOpacity() * currentColor.getRed();
-							g += transp * currentColor.getOpacity() * currentColor.getGreen();
-							b += transp * currentColor.getOpacity() * currentColor.getBlue();
-							transp *= (1d - currentColor.getOpacity());
-						}
-					}
-
-					// Fixes the problem then r goes out of bounds
-					r = Math.min(1.0, r);
-					g = Math.min(1.0, g);
-					b = Math.min(1.0, b);
-
-					colorToUse = new Color(r, g, b, 1d);
-					image_writer.setColor(i, j, colorToUse);
-				}
-			}
-
-			images.add(image);
-		}
-		System.out.println("Q2 Z array is rendered with a size = " + images.size());
+	// Makes the gray scale image of the slice, rows starting from 'loadedRows' are black
+	private static WritableImage renderSlice(short[] slice, int imageWidth, int imageHeight, int loadedRows,
+			WindowLevel windowLevel) {
+		PixelBuffer pixels = new PixelBuffer(imageWidth, imageHeight); // Rows which are not loaded stay black
+		pixels.map(slice, Math.min(loadedRows, imageHeight) * imageWidth, windowLevel);
+		return pixels.toImage();
 	}
 }
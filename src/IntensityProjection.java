@@ -0,0 +1,131 @@
+import java.util.stream.IntStream;
+
+/**
+ * Projections of the volume along an axis: maximum (MIP), minimum (MinIP) and
+ * average (AIP) intensity of every ray. The rays are reduced while the volume
+ * rows are streamed, every image row is reduced in parallel and the reduction
+ * loops use Math.max / Math.min and sums without branches, so one pass over
+ * the volume makes the whole image
+ *
+ * @author s0s100
+ *
+ */
+
+public class IntensityProjection {
+
+	// Reduces every ray along the axis into the array with getSliceWidth * getSliceHeight elements
+	public static void project(SliceWay sliceWay, SliceType sliceType, VolumeSource volume, short[] destination) {
+		int imageWidth = volume.getSliceWidth(sliceWay);
+		int imageHeight = volume.getSliceHeight(sliceWay);
+		int depth = volume.getDepth(sliceWay);
+
+		IntStream.range(0, imageHeight).parallel().forEach(v -> {
+			int[] result = new int[imageWidth]; // Reduced value of every ray of the image row
+			short[] row = new short[volume.getSizeX()]; // X row of the volume
+			start(sliceType, result);
+
+			switch (sliceWay) {
+			case X_AXIS: {
+				// Image (y, z), every X row is one ray
+				for (int j = 0; j < imageWidth; j++) {
+					volume.copyRow(j, v, row, 0);
+					result[j] = reduce(sliceType, row, result[j]);
+				}
+				break;
+			}
+			case Y_AXIS: {
+				// Image (x, z), X rows of the Z slice are reduced together
+				for (int j = 0; j < depth; j++) {
+					volume.copyRow(j, v, row, 0);
+					accumulate(sliceType, row, result);
+				}
+				break;
+			}
+			case Z_AXIS: {
+				// Image (x, y), X rows with the same Y are reduced together
+				for (int k = 0; k < depth; k++) {
+					volume.copyRow(v, k, row, 0);
+					accumulate(sliceType, row, result);
+				}
+				break;
+			}
+			}
+
+			// Sums become averages
+			int position = v * imageWidth;
+			for (int p = 0; p < imageWidth; p++) {
+				destination[position + p] = (short) (sliceType == SliceType.AverageProjection
+						? Math.round((double) result[p] / depth)
+						: result[p]);
+			}
+		});
+	}
+
+	// Sets the starting value of every ray
+	private static void start(SliceType sliceType, int[] result) {
+		int value;
+		switch (sliceType) {
+		case MaximumProjection: {
+			value = Short.MIN_VALUE;
+			break;
+		}
+		case MinimumProjection: {
+			value = Short.MAX_VALUE;
+			break;
+		}
+		default: {
+			value = 0;
+		}
+		}
+		for (int p = 0; p < result.length; p++) {
+			result[p] = value;
+		}
+	}
+
+	// Reduces every element of the row into the ray of the same position
+	private static void accumulate(SliceType sliceType, short[] row, int[] result) {
+		switch (sliceType) {
+		case MaximumProjection: {
+			for (int p = 0; p < result.length; p++) {
+				result[p] = Math.max(result[p], row[p]);
+			}
+			break;
+		}
+		case MinimumProjection: {
+			for (int p = 0; p < result.length; p++) {
+				result[p] = Math.min(result[p], row[p]);
+			}
+			break;
+		}
+		default: {
+			for (int p = 0; p < result.length; p++) {
+				result[p] += row[p];
+			}
+		}
+		}
+	}
+
+	// Reduces the whole row into one ray value
+	private static int reduce(SliceType sliceType, short[] row, int value) {
+		switch (sliceType) {
+		case MaximumProjection: {
+			for (short element : row) {
+				value = Math.max(value, element);
+			}
+			break;
+		}
+		case MinimumProjection: {
+			for (short element : row) {
+				value = Math.min(value, element);
+			}
+			break;
+		}
+		default: {
+			for (short element : row) {
+				value += element;
+			}
+		}
+		}
+		return value;
+	}
+}
@@ -1,4 +1,10 @@
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.event.EventHandler;
@@ -11,13 +17,17 @@ import javafx.scene.control.Toggle;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.control.ToggleGroup;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.WritableImage;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.paint.Color;
 import javafx.stage.Stage;
-import java.io.*;
 
 /**
- * Main window to interact with a volume data. By default first renders Q1 and
- * Q2 image arrays to reduce response time. Q3 uses real-time rendering.
+ * Main window to interact with a volume data. The window is shown right away
+ * and the volume is loaded in the background, Q1 slices are rendered from the
+ * loaded part of the volume. After loading Q1 slices are read on demand and
+ * Q2 rays are classified once, so any skin opacity is shown right away. Q3
+ * uses real-time rendering.
  * 
  * @author s0s100
  *
@@ -28,6 +38,23 @@ public class MainWindow extends Application {
 	private static final int SCREEN_WIDTH = 1300;
 	private static final int SCREEN_HEIGHT = 720;
 	private static final int SHIFT_VALUE = 20;
+	private static final int WINDOW_LEVEL_STEPS = 128; // Part of the window width changed by one pixel of the mouse move
+
+	// Side of the volume bricks, so slices and rays along every axis are read equally fast (0 - row by row)
+	private static final int VOLUME_BRICK_SIZE = 16;
+
+	// Whether Q2 collections and Q3 renderer are created at the same time, otherwise one after another
+	private static final boolean CONCURRENT_COLLECTIONS = true;
+
+	private VolumeData volumeData; // Volume which is shown
+
+	// Image arrays and Q3 renderer, they are created after the volume is loaded
+	private ImageCollection xQ1ImageCollection, yQ1ImageCollection, zQ1ImageCollection;
+	private ImageCollection xQ2ImageCollection, yQ2ImageCollection, zQ2ImageCollection;
+	private GradientRenderer gradientRenderer;
+	private ObliqueSlicer obliqueSlicer;
+	private final SlabRenderer[] slabRenderers = new SlabRenderer[SliceWay.values().length]; // Projection slab of every axis
+	private final Map<SliceType, ImageCollection[]> projectionCollections = new EnumMap<>(SliceType.class); // Made when they are shown first
 
 	// Main launch element
 	@Override
@@ -42,15 +69,17 @@ public class MainWindow extends Application {
 		// Set default path
 		System.out.println();
 		String defaultPath = "volume data/CThead";
-		//String defaultPath = "volume data/extra/present492x492x442.dat";
-
-		// Read data
-		VolumeData volumeData = new VolumeData();
-		try {
-			volumeData.readData(defaultPath);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		// String defaultPath = "volume data/extra/present492x492x442.dat";
+
+		// Read the header only, the window can be built with it and the voxels are loaded later
+		volumeData = new VolumeData();
+		volumeData.setBrickSize(VOLUME_BRICK_SIZE);
+		volumeData.openData(defaultPath);
+
+		// Volume sizes used for the elements layout
+		int sizeX = volumeData.getSizeX();
+		int sizeY = volumeData.getSizeY();
+		int sizeZ = volumeData.getSizeZ();
 
 		/*
 		 * Q1 elements
@@ -58,16 +87,15 @@ public class MainWindow extends Application {
 
 		// X axis
 
-		ImageCollection xQ1ImageCollection = new ImageCollection(SliceWay.X_AXIS, SliceType.NormalSlice, volumeData);
-		ImageView xImageView = new ImageView(xQ1ImageCollection.getImages().get(0));
-		Slider xSlider = new Slider(0, VolumeData.CT_X_AXIS - 1, 0);
+		ImageView xImageView = new ImageView(getQ1Image(xQ1ImageCollection, SliceWay.X_AXIS, 0));
+		Slider xSlider = new Slider(0, sizeX - 1, 0);
 
 		// Create and add listener
 		ChangeListener<Number> xListener = new ChangeListener<Number>() {
 
 			@Override
 			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
-				xImageView.setImage(xQ1ImageCollection.getImageWithIndex(newValue.intValue()));
+				xImageView.setImage(getQ1Image(xQ1ImageCollection, SliceWay.X_AXIS, newValue.intValue()));
 			}
 
 		};
@@ -76,20 +104,19 @@ public class MainWindow extends Application {
 		// Set elements position
 		xImageView.setTranslateX(SHIFT_VALUE);
 		xImageView.setTranslateY(SHIFT_VALUE);
-		xSlider.setTranslateX(2 * SHIFT_VALUE + VolumeData.CT_Y_AXIS);
-		xSlider.setTranslateY(SHIFT_VALUE + VolumeData.CT_Z_AXIS / 2);
+		xSlider.setTranslateX(2 * SHIFT_VALUE + sizeY);
+		xSlider.setTranslateY(SHIFT_VALUE + sizeZ / 2);
 
 		// Y axis
-		ImageCollection yQ1ImageCollection = new ImageCollection(SliceWay.Y_AXIS, SliceType.NormalSlice, volumeData);
-		ImageView yImageView = new ImageView(yQ1ImageCollection.getImages().get(0));
-		Slider ySlider = new Slider(0, VolumeData.CT_Y_AXIS - 1, 0);
+		ImageView yImageView = new ImageView(getQ1Image(yQ1ImageCollection, SliceWay.Y_AXIS, 0));
+		Slider ySlider = new Slider(0, sizeY - 1, 0);
 
 		// Create and add listener
 		ChangeListener<Number> yListener = new ChangeListener<Number>() {
 
 			@Override
 			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
-				yImageView.setImage(yQ1ImageCollection.getImageWithIndex(newValue.intValue()));
+				yImageView.setImage(getQ1Image(yQ1ImageCollection, SliceWay.Y_AXIS, newValue.intValue()));
 			}
 
 		};
@@ -97,21 +124,20 @@ public class MainWindow extends Application {
 
 		// Set elements position
 		yImageView.setTranslateX(SHIFT_VALUE);
-		yImageView.setTranslateY(2 * SHIFT_VALUE + VolumeData.CT_Z_AXIS);
-		ySlider.setTranslateX(2 * SHIFT_VALUE + VolumeData.CT_Y_AXIS);
-		ySlider.setTranslateY(2 * SHIFT_VALUE + VolumeData.CT_Z_AXIS * 3 / 2);
+		yImageView.setTranslateY(2 * SHIFT_VALUE + sizeZ);
+		ySlider.setTranslateX(2 * SHIFT_VALUE + sizeY);
+		ySlider.setTranslateY(2 * SHIFT_VALUE + sizeZ * 3 / 2);
 
 		// Z axis
-		ImageCollection zQ1ImageCollection = new ImageCollection(SliceWay.Z_AXIS, SliceType.NormalSlice, volumeData);
-		ImageView zImageView = new ImageView(zQ1ImageCollection.getImages().get(0));
-		Slider zSlider = new Slider(0, VolumeData.CT_Z_AXIS - 1, 0);
+		ImageView zImageView = new ImageView(getQ1Image(zQ1ImageCollection, SliceWay.Z_AXIS, 0));
+		Slider zSlider = new Slider(0, sizeZ - 1, 0);
 
 		// Create and add listener
 		ChangeListener<Number> zListener = new ChangeListener<Number>() {
 
 			@Override
 			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
-				zImageView.setImage(zQ1ImageCollection.getImageWithIndex(newValue.intValue()));
+				zImageView.setImage(getQ1Image(zQ1ImageCollection, SliceWay.Z_AXIS, newValue.intValue()));
 			}
 
 		};
@@ -119,41 +145,65 @@ public class MainWindow extends Application {
 
 		// Set elements position
 		zImageView.setTranslateX(SHIFT_VALUE);
-		zImageView.setTranslateY(SHIFT_VALUE * 3 + VolumeData.CT_Z_AXIS * 2);
-		zSlider.setTranslateX(2 * SHIFT_VALUE + VolumeData.CT_Y_AXIS);
-		zSlider.setTranslateY(3 * SHIFT_VALUE + VolumeData.CT_Z_AXIS * 2 + VolumeData.CT_Y_AXIS / 2);
+		zImageView.setTranslateY(SHIFT_VALUE * 3 + sizeZ * 2);
+		zSlider.setTranslateX(2 * SHIFT_VALUE + sizeY);
+		zSlider.setTranslateY(3 * SHIFT_VALUE + sizeZ * 2 + sizeY / 2);
 
 		/*
 		 * Q2 elements
 		 */
 
-		// Volume render slider and rendered image collections
-		ImageCollection xQ2ImageCollection = new ImageCollection(SliceWay.X_AXIS, SliceType.VolumeRender, volumeData);
-		ImageCollection yQ2ImageCollection = new ImageCollection(SliceWay.Y_AXIS, SliceType.VolumeRender, volumeData);
-		ImageCollection zQ2ImageCollection = new ImageCollection(SliceWay.Z_AXIS, SliceType.VolumeRender, volumeData);
+		// Volume render slider, skin opacity is changed continuously. Image collections are made after loading
 		Slider vSlider = new Slider(0, ImageCollection.SKIP_OPACITY_SCALE - 1, 0);
 		ChangeListener<Number> vListener = new ChangeListener<Number>() {
 
 			@Override
 			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
-				xImageView.setImage(xQ2ImageCollection.getImageWithIndex(newValue.intValue()));
-				yImageView.setImage(yQ2ImageCollection.getImageWithIndex(newValue.intValue()));
-				zImageView.setImage(zQ2ImageCollection.getImageWithIndex(newValue.intValue()));
+				xImageView.setImage(xQ2ImageCollection.getImageWithOpacity(getSkinOpacity(vSlider)));
+				yImageView.setImage(yQ2ImageCollection.getImageWithOpacity(getSkinOpacity(vSlider)));
+				zImageView.setImage(zQ2ImageCollection.getImageWithOpacity(getSkinOpacity(vSlider)));
 			}
 
 		};
 
 		// Set elements position
 		vSlider.setTranslateX(SHIFT_VALUE);
-		vSlider.setTranslateY(5 * SHIFT_VALUE + VolumeData.CT_Z_AXIS * 2 + VolumeData.CT_Y_AXIS + 35);
+		vSlider.setTranslateY(5 * SHIFT_VALUE + sizeZ * 2 + sizeY + 35);
 
-		// Toggle switch for the Q2
+		// Toggle switch for the Q2, it is enabled when Q2 images are rendered
 		ToggleButton q1State = new ToggleButton("Q1");
 		ToggleButton q2State = new ToggleButton("Q2");
+		q2State.setDisable(true);
+
+		// Intensity projections of every toggle, they are enabled when the volume is loaded
+		ToggleButton mipState = new ToggleButton("MIP");
+		ToggleButton minipState = new ToggleButton("MinIP");
+		ToggleButton aipState = new ToggleButton("AIP");
+		Map<Toggle, SliceType> projectionStates = new HashMap<>();
+		projectionStates.put(mipState, SliceType.MaximumProjection);
+		projectionStates.put(minipState, SliceType.MinimumProjection);
+		projectionStates.put(aipState, SliceType.AverageProjection);
 
 		final ToggleGroup toggleGroup = new ToggleGroup();
 		q1State.setToggleGroup(toggleGroup);
 		q2State.setToggleGroup(toggleGroup);
+		for (Toggle projectionState : projectionStates.keySet()) {
+			((ToggleButton) projectionState).setToggleGroup(toggleGroup);
+			((ToggleButton) projectionState).setDisable(true);
+		}
+
+		// Projection slab thickness slider, the whole axis is projected with the largest thickness.
+		// Slabs are placed around the positions of Q1 sliders
+		int maxThickness = Math.max(sizeX, Math.max(sizeY, sizeZ));
+		Slider tSlider = new Slider(1, maxThickness, maxThickness);
+		Runnable projectionUpdate = () -> {
+			SliceType sliceType = projectionStates.get(toggleGroup.getSelectedToggle());
+			int thickness = (int) tSlider.getValue();
+			xImageView.setImage(getProjectionImage(sliceType, SliceWay.X_AXIS, (int) xSlider.getValue(), thickness));
+			yImageView.setImage(getProjectionImage(sliceType, SliceWay.Y_AXIS, (int) ySlider.getValue(), thickness));
+			zImageView.setImage(getProjectionImage(sliceType, SliceWay.Z_AXIS, (int) zSlider.getValue(), thickness));
+		};
+		ChangeListener<Number> pListener = (observable, oldValue, newValue) -> projectionUpdate.run();
 
 		toggleGroup.selectToggle(q1State);
 		toggleGroup.selectedToggleProperty().addListener(new ChangeListener<Toggle>() {
@@ -171,54 +221,177 @@ public class MainWindow extends Application {
 						ySlider.valueProperty().addListener(yListener);
 						zSlider.valueProperty().addListener(zListener);
 						vSlider.valueProperty().removeListener(vListener);
+						removeListener(pListener, xSlider, ySlider, zSlider, tSlider);
 
 						// Select current Q1 image
-						xImageView.setImage(xQ1ImageCollection.getImageWithIndex((int) xSlider.getValue()));
-						yImageView.setImage(yQ1ImageCollection.getImageWithIndex((int) ySlider.getValue()));
-						zImageView.setImage(zQ1ImageCollection.getImageWithIndex((int) zSlider.getValue()));
-					} else {
+						xImageView.setImage(getQ1Image(xQ1ImageCollection, SliceWay.X_AXIS, (int) xSlider.getValue()));
+						yImageView.setImage(getQ1Image(yQ1ImageCollection, SliceWay.Y_AXIS, (int) ySlider.getValue()));
+						zImageView.setImage(getQ1Image(zQ1ImageCollection, SliceWay.Z_AXIS, (int) zSlider.getValue()));
+					} else if (selectedToggle == q2State) {
 						// Add and remove listeners to avoid Q1 toggling
 						xSlider.valueProperty().removeListener(xListener);
 						ySlider.valueProperty().removeListener(yListener);
 						zSlider.valueProperty().removeListener(zListener);
 						vSlider.valueProperty().addListener(vListener);
+						removeListener(pListener, xSlider, ySlider, zSlider, tSlider);
 
 						// Select current Q2 image
-						xImageView.setImage(xQ2ImageCollection.getImageWithIndex((int) vSlider.getValue()));
-						yImageView.setImage(yQ2ImageCollection.getImageWithIndex((int) vSlider.getValue()));
-						zImageView.setImage(zQ2ImageCollection.getImageWithIndex((int) vSlider.getValue()));
+						xImageView.setImage(xQ2ImageCollection.getImageWithOpacity(getSkinOpacity(vSlider)));
+						yImageView.setImage(yQ2ImageCollection.getImageWithOpacity(getSkinOpacity(vSlider)));
+						zImageView.setImage(zQ2ImageCollection.getImageWithOpacity(getSkinOpacity(vSlider)));
+					} else {
+						// Q1 sliders move the projection slabs, the listener is added once for every slider
+						xSlider.valueProperty().removeListener(xListener);
+						ySlider.valueProperty().removeListener(yListener);
+						zSlider.valueProperty().removeListener(zListener);
+						vSlider.valueProperty().removeListener(vListener);
+						removeListener(pListener, xSlider, ySlider, zSlider, tSlider);
+						xSlider.valueProperty().addListener(pListener);
+						ySlider.valueProperty().addListener(pListener);
+						zSlider.valueProperty().addListener(pListener);
+						tSlider.valueProperty().addListener(pListener);
+
+						// Select projection of every axis
+						projectionUpdate.run();
 					}
 				}
 			}
 		});
 
 		// Set elements position
-		q1State.setTranslateX(2 * SHIFT_VALUE + VolumeData.CT_X_AXIS);
-		q1State.setTranslateY(4 * SHIFT_VALUE + VolumeData.CT_Z_AXIS * 2 + VolumeData.CT_X_AXIS);
-		q2State.setTranslateX(2 * SHIFT_VALUE + VolumeData.CT_X_AXIS + 50);
-		q2State.setTranslateY(4 * SHIFT_VALUE + VolumeData.CT_Z_AXIS * 2 + VolumeData.CT_X_AXIS);
+		q1State.setTranslateX(2 * SHIFT_VALUE + sizeX);
+		q1State.setTranslateY(4 * SHIFT_VALUE + sizeZ * 2 + sizeX);
+		q2State.setTranslateX(2 * SHIFT_VALUE + sizeX + 50);
+		q2State.setTranslateY(4 * SHIFT_VALUE + sizeZ * 2 + sizeX);
+		mipState.setTranslateX(2 * SHIFT_VALUE + sizeX + 100);
+		mipState.setTranslateY(4 * SHIFT_VALUE + sizeZ * 2 + sizeX);
+		minipState.setTranslateX(2 * SHIFT_VALUE + sizeX + 150);
+		minipState.setTranslateY(4 * SHIFT_VALUE + sizeZ * 2 + sizeX);
+		aipState.setTranslateX(2 * SHIFT_VALUE + sizeX + 210);
+		aipState.setTranslateY(4 * SHIFT_VALUE + sizeZ * 2 + sizeX);
+		tSlider.setTranslateX(2 * SHIFT_VALUE + sizeX);
+		tSlider.setTranslateY(5 * SHIFT_VALUE + sizeZ * 2 + sizeY + 35);
+
+		/*
+		 * Oblique slice elements
+		 */
+
+		int obliqueSide = ObliqueSlicer.findSide(sizeX, sizeY, sizeZ);
+		ImageView mImageView = new ImageView(); // Image is rendered when the volume is loaded
+		Slider mSlider = new Slider(-obliqueSide / 2, obliqueSide / 2, 0); // Slider to move the plane along its normal
+
+		// The plane is turned by dragging over the image
+		mImageView.addEventHandler(MouseEvent.ANY, new EventHandler<MouseEvent>() {
+			// Mouse position before the drag
+			int x1, y1;
+
+			@Override
+			public void handle(MouseEvent event) {
+				if (obliqueSlicer == null) {
+					return;
+				}
+
+				if (event.getEventType() == MouseEvent.MOUSE_PRESSED) {
+					x1 = (int) event.getX();
+					y1 = (int) event.getY();
+				} else if (event.getEventType() == MouseEvent.MOUSE_DRAGGED) {
+					obliqueSlicer.changeOrientation((int) event.getX() - x1, y1 - (int) event.getY());
+					mImageView.setImage(obliqueSlicer.renderImage(xQ1ImageCollection.getWindowLevel()));
+					x1 = (int) event.getX();
+					y1 = (int) event.getY();
+				}
+			}
+		});
+
+		// Plane offset slider listener
+		mSlider.valueProperty().addListener(new ChangeListener<Number>() {
+			@Override
+			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
+				if (obliqueSlicer != null) {
+					obliqueSlicer.setOffset(newValue.doubleValue());
+					mImageView.setImage(obliqueSlicer.renderImage(xQ1ImageCollection.getWindowLevel()));
+				}
+			}
+		});
+
+		// Set elements position, the image is placed to the left of Q3 image
+		mImageView.setTranslateX(SCREEN_WIDTH - GradientRenderer.IMAGE_SIDE_LENGTH - 2 * SHIFT_VALUE - obliqueSide);
+		mImageView.setTranslateY(2 * SHIFT_VALUE + 35);
+		mSlider.setTranslateX(SCREEN_WIDTH - GradientRenderer.IMAGE_SIDE_LENGTH - 2 * SHIFT_VALUE - obliqueSide);
+		mSlider.setTranslateY(3 * SHIFT_VALUE + 35 + obliqueSide);
+
+		// Window / level of Q1 and projection images is changed by dragging over them, double click shows every value again
+		EventHandler<MouseEvent> windowLevelHandler = new EventHandler<MouseEvent>() {
+			// Mouse position before the drag
+			int x1, y1;
+
+			@Override
+			public void handle(MouseEvent event) {
+				Toggle selectedToggle = toggleGroup.getSelectedToggle();
+				if (xQ1ImageCollection == null || selectedToggle == null || selectedToggle == q2State) {
+					return;
+				}
+
+				if (event.getEventType() == MouseEvent.MOUSE_PRESSED) {
+					x1 = (int) event.getX();
+					y1 = (int) event.getY();
+					return;
+				} else if (event.getEventType() == MouseEvent.MOUSE_DRAGGED) {
+					// Horizontal move changes the window width and vertical move changes the level
+					int step = Math.max(1, xQ1ImageCollection.getWindowLevel().getWidth() / WINDOW_LEVEL_STEPS);
+					setWindowLevel(xQ1ImageCollection.getWindowLevel().adjust((y1 - (int) event.getY()) * step,
+							((int) event.getX() - x1) * step));
+					x1 = (int) event.getX();
+					y1 = (int) event.getY();
+				} else if (event.getEventType() == MouseEvent.MOUSE_CLICKED && event.getClickCount() == 2) {
+					setWindowLevel(WindowLevel.ofRange(volumeData.getMin(), volumeData.getMax()));
+				} else {
+					return;
+				}
+
+				// Only the shown images are made again
+				if (selectedToggle == q1State) {
+					xImageView.setImage(getQ1Image(xQ1ImageCollection, SliceWay.X_AXIS, (int) xSlider.getValue()));
+					yImageView.setImage(getQ1Image(yQ1ImageCollection, SliceWay.Y_AXIS, (int) ySlider.getValue()));
+					zImageView.setImage(getQ1Image(zQ1ImageCollection, SliceWay.Z_AXIS, (int) zSlider.getValue()));
+				} else {
+					projectionUpdate.run();
+				}
+				if (obliqueSlicer != null) {
+					mImageView.setImage(obliqueSlicer.renderImage(xQ1ImageCollection.getWindowLevel()));
+				}
+			}
+		};
+		xImageView.addEventHandler(MouseEvent.ANY, windowLevelHandler);
+		yImageView.addEventHandler(MouseEvent.ANY, windowLevelHandler);
+		zImageView.addEventHandler(MouseEvent.ANY, windowLevelHandler);
 
 		/**
 		 * Q3 elements
 		 */
 
 		ColorPicker colorPicker = new ColorPicker(); // Allows to pick a color of the light
+		ToggleButton rayState = new ToggleButton("Ray casting"); // Casts the rays through the unrotated volume
 		Slider lSlider = new Slider(GradientRenderer.MIN_LIGHT_X, GradientRenderer.MAX_LIGHT_X, 0); // Slider to change the angle of the light
-		GradientRenderer gradientRenderer = new GradientRenderer(volumeData, (int) lSlider.getValue(),
-				colorPicker.getValue()); // Class which allows us to interact with a skull using rotation and light rendering
-		ImageView gImageView = new ImageView(gradientRenderer.renderImage());
+		ImageView gImageView = new ImageView(); // Image is rendered when the volume is loaded
 
 		// Create mouse dragging handler
 		EventHandler<MouseEvent> eventHandler = new EventHandler<MouseEvent>() {
 			// Values before and after clicking the mouse button
 			int x1, y1, x2, y2, dx, dy;
+			boolean dragged; // Whether the view was rotated after the mouse was pressed
 
 			@Override
 			public void handle(MouseEvent event) {
+				if (gradientRenderer == null) {
+					return;
+				}
+
 				if (event.getEventType() == MouseEvent.MOUSE_PRESSED) {
 					// Remember the values when the mouse is pressed
 					x1 = (int) event.getX();
 					y1 = (int) event.getY();
+					dragged = false;
 
 					// Debug
 					// System.out.println(String.format("Mouse pressed: [%d,%d]", x1, y1));
@@ -232,6 +405,12 @@ public class MainWindow extends Application {
 					x1 = x2;
 					y1 = y2;
 
+					// Reduced volume is rotated while the mouse is dragged
+					if (!dragged) {
+						gradientRenderer.setLevel(GradientRenderer.INTERACTIVE_LEVEL);
+						dragged = true;
+					}
+
 					// Change an volume data set by rotating it using value distinction
 					gradientRenderer.changePointOfView(dx, dy);
 					gImageView.setImage(gradientRenderer.renderImage());
@@ -239,6 +418,13 @@ public class MainWindow extends Application {
 					// Debug
 					// System.out.println(String.format("Mouse dragged: [%d,%d]", x1, y1));
 					// System.out.println(String.format("Shift: [%d,%d]", dx, dy));
+				} else if (event.getEventType() == MouseEvent.MOUSE_RELEASED) {
+					// Render the full resolution image when the rotation is finished, a click doesn't change the view
+					if (dragged) {
+						gradientRenderer.setLevel(0);
+						gImageView.setImage(gradientRenderer.renderImage());
+						dragged = false;
+					}
 				}
 			}
 		};
@@ -248,24 +434,38 @@ public class MainWindow extends Application {
 		lSlider.valueProperty().addListener(new ChangeListener<Number>() {
 			@Override
 			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
-				gradientRenderer.setLightAngle(newValue.intValue());
-				gImageView.setImage(gradientRenderer.renderImage());
+				if (gradientRenderer != null) {
+					gradientRenderer.setLightAngle(newValue.intValue());
+					gImageView.setImage(gradientRenderer.renderImage());
+				}
 			}
 		});
 
 		// Color picker listener
 		colorPicker.setOnAction(t -> {
-			gradientRenderer.setLightColor(colorPicker.getValue());
-			gImageView.setImage(gradientRenderer.renderImage());
+			if (gradientRenderer != null) {
+				gradientRenderer.setLightColor(colorPicker.getValue());
+				gImageView.setImage(gradientRenderer.renderImage());
+			}
+		});
+
+		// Ray casting button listener
+		rayState.setOnAction(t -> {
+			if (gradientRenderer != null) {
+				gradientRenderer.setRayCasting(rayState.isSelected());
+				gImageView.setImage(gradientRenderer.renderImage());
+			}
 		});
 
 		// Set elements position
-		gImageView.setTranslateX(SCREEN_WIDTH - VolumeData.CT_X_AXIS - SHIFT_VALUE);
+		gImageView.setTranslateX(SCREEN_WIDTH - GradientRenderer.IMAGE_SIDE_LENGTH - SHIFT_VALUE);
 		gImageView.setTranslateY(2 * SHIFT_VALUE + 35);
-		colorPicker.setTranslateX(SCREEN_WIDTH - SHIFT_VALUE - VolumeData.CT_X_AXIS);
-		colorPicker.setTranslateY(3 * SHIFT_VALUE + 35 * 3 + VolumeData.CT_Y_AXIS);
-		lSlider.setTranslateX(SCREEN_WIDTH - VolumeData.CT_X_AXIS - SHIFT_VALUE);
-		lSlider.setTranslateY(3 * SHIFT_VALUE + 35 * 2 + VolumeData.CT_Y_AXIS);
+		colorPicker.setTranslateX(SCREEN_WIDTH - SHIFT_VALUE - GradientRenderer.IMAGE_SIDE_LENGTH);
+		colorPicker.setTranslateY(3 * SHIFT_VALUE + 35 * 3 + GradientRenderer.IMAGE_SIDE_LENGTH);
+		rayState.setTranslateX(SCREEN_WIDTH - SHIFT_VALUE - GradientRenderer.IMAGE_SIDE_LENGTH);
+		rayState.setTranslateY(3 * SHIFT_VALUE + 35 * 4 + GradientRenderer.IMAGE_SIDE_LENGTH);
+		lSlider.setTranslateX(SCREEN_WIDTH - GradientRenderer.IMAGE_SIDE_LENGTH - SHIFT_VALUE);
+		lSlider.setTranslateY(3 * SHIFT_VALUE + 35 * 2 + GradientRenderer.IMAGE_SIDE_LENGTH);
 
 		/*
 		 * Adding text fields to provide more information
@@ -273,33 +473,44 @@ public class MainWindow extends Application {
 
 		TextField xSliderText = new TextField("X Axis Q1 slider");
 		xSliderText.setDisable(true);
-		xSliderText.setTranslateX(2 * SHIFT_VALUE + VolumeData.CT_Y_AXIS);
-		xSliderText.setTranslateY(SHIFT_VALUE + VolumeData.CT_Z_AXIS / 2 - 35);
+		xSliderText.setTranslateX(2 * SHIFT_VALUE + sizeY);
+		xSliderText.setTranslateY(SHIFT_VALUE + sizeZ / 2 - 35);
 
 		TextField ySliderText = new TextField("Y Axis Q1 slider");
 		ySliderText.setDisable(true);
-		ySliderText.setTranslateX(2 * SHIFT_VALUE + VolumeData.CT_X_AXIS);
-		ySliderText.setTranslateY(2 * SHIFT_VALUE + VolumeData.CT_Z_AXIS * 3 / 2 - 35);
+		ySliderText.setTranslateX(2 * SHIFT_VALUE + sizeX);
+		ySliderText.setTranslateY(2 * SHIFT_VALUE + sizeZ * 3 / 2 - 35);
 
 		TextField zSliderText = new TextField("Z Axis Q1 slider");
 		zSliderText.setDisable(true);
-		zSliderText.setTranslateX(2 * SHIFT_VALUE + VolumeData.CT_X_AXIS);
-		zSliderText.setTranslateY(3 * SHIFT_VALUE + VolumeData.CT_Z_AXIS * 2 + VolumeData.CT_Y_AXIS / 2 - 35);
+		zSliderText.setTranslateX(2 * SHIFT_VALUE + sizeX);
+		zSliderText.setTranslateY(3 * SHIFT_VALUE + sizeZ * 2 + sizeY / 2 - 35);
 
 		TextField vSliderText = new TextField("Skin opacity Q2 slider");
 		vSliderText.setDisable(true);
 		vSliderText.setTranslateX(SHIFT_VALUE);
-		vSliderText.setTranslateY(4 * SHIFT_VALUE + VolumeData.CT_Z_AXIS * 2 + VolumeData.CT_X_AXIS);
+		vSliderText.setTranslateY(4 * SHIFT_VALUE + sizeZ * 2 + sizeX);
+
+		TextField tSliderText = new TextField("Projection slab thickness");
+		tSliderText.setDisable(true);
+		tSliderText.setTranslateX(2 * SHIFT_VALUE + sizeX);
+		tSliderText.setTranslateY(4 * SHIFT_VALUE + sizeZ * 2 + sizeX + 35);
 
 		TextField lSliderText = new TextField("X light position");
 		lSliderText.setDisable(true);
-		lSliderText.setTranslateX(SCREEN_WIDTH - SHIFT_VALUE - VolumeData.CT_X_AXIS);
-		lSliderText.setTranslateY(3 * SHIFT_VALUE + 35 + VolumeData.CT_Y_AXIS);
+		lSliderText.setTranslateX(SCREEN_WIDTH - SHIFT_VALUE - GradientRenderer.IMAGE_SIDE_LENGTH);
+		lSliderText.setTranslateY(3 * SHIFT_VALUE + 35 + GradientRenderer.IMAGE_SIDE_LENGTH);
+
+		TextField mText = new TextField("Oblique slice, drag to turn the plane");
+		mText.setMinWidth(GradientRenderer.IMAGE_SIDE_LENGTH);
+		mText.setDisable(true);
+		mText.setTranslateX(SCREEN_WIDTH - GradientRenderer.IMAGE_SIDE_LENGTH - 2 * SHIFT_VALUE - obliqueSide);
+		mText.setTranslateY(SHIFT_VALUE);
 
 		TextField q3Text = new TextField("Q3 solution with mouse interaction");
-		q3Text.setMinWidth(VolumeData.CT_X_AXIS);
+		q3Text.setMinWidth(GradientRenderer.IMAGE_SIDE_LENGTH);
 		q3Text.setDisable(true);
-		q3Text.setTranslateX(SCREEN_WIDTH - SHIFT_VALUE - VolumeData.CT_X_AXIS);
+		q3Text.setTranslateX(SCREEN_WIDTH - SHIFT_VALUE - GradientRenderer.IMAGE_SIDE_LENGTH);
 		q3Text.setTranslateY(SHIFT_VALUE);
 
 		/*
@@ -307,15 +518,145 @@ public class MainWindow extends Application {
 		 */
 
 		Pane root = new Pane();
-		root.getChildren().addAll(xSliderText, ySliderText, zSliderText, vSliderText, lSliderText, q3Text); // Text info
+		root.getChildren().addAll(xSliderText, ySliderText, zSliderText, vSliderText, tSliderText, lSliderText, mText, q3Text); // Text info
 		root.getChildren().addAll(xImageView, yImageView, zImageView, xSlider, ySlider, zSlider); // Q1 elements
 		root.getChildren().addAll(q1State, q2State, vSlider); // Q2 elements
-		root.getChildren().addAll(gImageView, lSlider, colorPicker); // Q3 elements
+		root.getChildren().addAll(mipState, minipState, aipState, tSlider); // Projection elements
+		root.getChildren().addAll(mImageView, mSlider); // Oblique slice elements
+		root.getChildren().addAll(gImageView, lSlider, colorPicker, rayState); // Q3 elements
 
 		Scene scene = new Scene(root, SCREEN_WIDTH, SCREEN_HEIGHT);
 		stage.setTitle("Main screen");
 		stage.setScene(scene);
 		stage.show();
+
+		/*
+		 * Volume loading
+		 */
+
+		// Voxels are read in the background, Q1 images show the loaded slices and the title shows the progress
+		volumeData.loadDataAsync(new VolumeData.LoadListener() {
+
+			@Override
+			public void slicesLoaded(int loadedSlices) {
+				Platform.runLater(() -> {
+					stage.setTitle(String.format("Main screen (loading %d/%d slices)", loadedSlices, sizeZ));
+					xImageView.setImage(getQ1Image(xQ1ImageCollection, SliceWay.X_AXIS, (int) xSlider.getValue()));
+					yImageView.setImage(getQ1Image(yQ1ImageCollection, SliceWay.Y_AXIS, (int) ySlider.getValue()));
+					zImageView.setImage(getQ1Image(zQ1ImageCollection, SliceWay.Z_AXIS, (int) zSlider.getValue()));
+				});
+			}
+
+			@Override
+			public void loadFinished() {
+				// Q1 images are rendered on demand, so they can be shown right away
+				ImageCollection[] q1 = ImageCollection.createAll(SliceType.NormalSlice, volumeData, false);
+				ObliqueSlicer slicer = new ObliqueSlicer(volumeData.getVolume(), volumeData.getMin());
+				Platform.runLater(() -> {
+					xQ1ImageCollection = q1[SliceWay.X_AXIS.ordinal()];
+					yQ1ImageCollection = q1[SliceWay.Y_AXIS.ordinal()];
+					zQ1ImageCollection = q1[SliceWay.Z_AXIS.ordinal()];
+
+					// Projections are made from the loaded volume
+					for (Toggle projectionState : projectionStates.keySet()) {
+						((ToggleButton) projectionState).setDisable(false);
+					}
+
+					// Oblique slice uses the same contrast as Q1 images
+					obliqueSlicer = slicer;
+					obliqueSlicer.setOffset(mSlider.getValue());
+					mImageView.setImage(obliqueSlicer.renderImage(xQ1ImageCollection.getWindowLevel()));
+				});
+
+				// Other image arrays are rendered by the loading thread and the fork-join pool, so the window keeps responding
+				CompletableFuture<GradientRenderer> rendererTask = CONCURRENT_COLLECTIONS
+						? CompletableFuture.supplyAsync(() -> new GradientRenderer(volumeData, 0, Color.WHITE))
+						: null;
+				ImageCollection[] q2 = ImageCollection.createAll(SliceType.VolumeRender, volumeData,
+						CONCURRENT_COLLECTIONS);
+				GradientRenderer renderer = rendererTask != null ? rendererTask.join()
+						: new GradientRenderer(volumeData, 0, Color.WHITE);
+
+				// Report how the brick cache worked while the images were generated
+				if (volumeData.getVolume() instanceof StreamingVolume) {
+					System.out.println(((StreamingVolume) volumeData.getVolume()).getCache());
+				}
+
+				Platform.runLater(() -> {
+					xQ2ImageCollection = q2[SliceWay.X_AXIS.ordinal()];
+					yQ2ImageCollection = q2[SliceWay.Y_AXIS.ordinal()];
+					zQ2ImageCollection = q2[SliceWay.Z_AXIS.ordinal()];
+					q2State.setDisable(false);
+
+					// Q3 image uses the current light settings
+					gradientRenderer = renderer;
+					gradientRenderer.setLightAngle((int) lSlider.getValue());
+					gradientRenderer.setLightColor(colorPicker.getValue());
+					gradientRenderer.setRayCasting(rayState.isSelected());
+					gImageView.setImage(gradientRenderer.renderImage());
+					stage.setTitle("Main screen");
+				});
+			}
+
+			@Override
+			public void loadFailed(Exception e) {
+				Platform.runLater(() -> {
+					System.out.println("Volume data can't be loaded: " + e);
+					Platform.exit();
+				});
+			}
+		});
+	}
+
+	// Gets Q1 image from the collection, the loaded part of the volume is rendered until the collection is created
+	private WritableImage getQ1Image(ImageCollection collection, SliceWay sliceWay, int index) {
+		if (collection != null) {
+			return collection.getImageWithIndex(index);
+		}
+		return ImageCollection.renderSlice(sliceWay, volumeData, index);
+	}
+
+	// Gets projection image of the slab around the slice, slabs as thick as the axis show the whole projection.
+	// Projections are made when they are shown first and use the Q1 contrast
+	private WritableImage getProjectionImage(SliceType sliceType, SliceWay sliceWay, int index, int thickness) {
+		WindowLevel windowLevel = xQ1ImageCollection.getWindowLevel();
+
+		if (thickness >= volumeData.getVolume().getDepth(sliceWay)) {
+			ImageCollection[] collections = projectionCollections.get(sliceType);
+			if (collections == null) {
+				collections = ImageCollection.createAll(sliceType, volumeData, true);
+				projectionCollections.put(sliceType, collections);
+			}
+			collections[sliceWay.ordinal()].setWindowLevel(windowLevel);
+			return collections[sliceWay.ordinal()].getImageWithIndex(0);
+		}
+
+		// Slab keeps its running values while only the slice changes
+		SlabRenderer slab = slabRenderers[sliceWay.ordinal()];
+		if (slab == null || slab.getSliceType() != sliceType || slab.getThickness() != thickness) {
+			slab = new SlabRenderer(sliceWay, sliceType, volumeData.getVolume(), thickness);
+			slabRenderers[sliceWay.ordinal()] = slab;
+		}
+		return slab.renderImage(index, windowLevel);
+	}
+
+	// Removes the listener from every slider
+	private static void removeListener(ChangeListener<Number> listener, Slider... sliders) {
+		for (Slider slider : sliders) {
+			slider.valueProperty().removeListener(listener);
+		}
+	}
+
+	// Gets skin opacity (0 - 1) selected by the slider
+	private static double getSkinOpacity(Slider slider) {
+		return slider.getValue() / (ImageCollection.SKIP_OPACITY_SCALE - 1);
+	}
+
+	// Sets contrast of every Q1 image collection
+	private void setWindowLevel(WindowLevel windowLevel) {
+		xQ1ImageCollection.setWindowLevel(windowLevel);
+		yQ1ImageCollection.setWindowLevel(windowLevel);
+		zQ1ImageCollection.setWindowLevel(windowLevel);
 	}
 
 	public static void main(String[] args) {
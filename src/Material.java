@@ -0,0 +1,40 @@
+// Material classes of the volume values, boundaries are the same as in the Q2 transfer function
+public enum Material {
+	AIR(Integer.MIN_VALUE, -301), SKIN(-300, 49), SOFT_TISSUE(50, 299), BONE(300, 4096), OTHER(4097, Integer.MAX_VALUE);
+
+	private final int min, max; // Range of the material values (inclusive)
+
+	private Material(int min, int max) {
+		this.min = min;
+		this.max = max;
+	}
+
+	// Finds the material of the value
+	public static Material of(int value) {
+		if (value < -300) {
+			return AIR;
+		}
+		if (value < 50) {
+			return SKIN;
+		}
+		if (value < 300) {
+			return SOFT_TISSUE;
+		}
+		if (value < 4097) {
+			return BONE;
+		}
+		return OTHER;
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public int getMin() {
+		return min;
+	}
+
+	public int getMax() {
+		return max;
+	}
+}
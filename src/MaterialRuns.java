@@ -0,0 +1,336 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Materials met by every ray of the Q2 volume render, stored as runs of skin
+ * and bone samples. Only skin opacity changes between the renders, so the
+ * volume is classified once and an image with any skin opacity is composited
+ * from the runs. A run of n samples with opacity a changes the transparency of
+ * the ray by (1 - a) ^ n, so it is composited in one step. Air and soft tissue
+ * don't change the ray, so the runs around them are joined. Rays are finished
+ * when their transparency becomes too small to change the pixel
+ *
+ * @author s0s100
+ *
+ */
+
+public class MaterialRuns {
+	private static final int SKIN = 0, BONE = 1, NONE = -1, KEEP = -2; // Materials which are composited by the rays
+	private static final int MAX_RUN = (1 << 14) - 1; // Longer runs are split, so every run fits into 15 bits
+	private static final double MIN_TRANSPARENCY = 1d / 1024; // Rays with smaller transparency are finished, the rest changes a pixel by a quarter of a step at most
+	private static final double BONE_OPACITY = 0.8d; // Bone is white with the following opacity
+
+	// Color of every composited material (skin, bone)
+	private static final double[] RUN_RED = { 1d, 1d };
+	private static final double[] RUN_GREEN = { 0.79d, 1d };
+	private static final double[] RUN_BLUE = { 0.6d, 1d };
+
+	// Composited material of every Material ordinal, OTHER keeps the previous material of the ray
+	private static final byte[] RAY_MATERIAL = new byte[Material.values().length];
+	static {
+		for (Material material : Material.values()) {
+			switch (material) {
+			case SKIN: {
+				RAY_MATERIAL[material.ordinal()] = SKIN;
+				break;
+			}
+			case BONE: {
+				RAY_MATERIAL[material.ordinal()] = BONE;
+				break;
+			}
+			case OTHER: {
+				RAY_MATERIAL[material.ordinal()] = KEEP;
+				break;
+			}
+			default: {
+				RAY_MATERIAL[material.ordinal()] = NONE;
+			}
+			}
+		}
+	}
+
+	private final int width, height; // Size of the image
+	private final int[] rayStart; // Position of the first run of every ray, the last element is the number of runs
+	private final int[] runs; // Run length shifted by one with the material in the lowest bit
+	private final double[] boneTransparency; // Transparency of the bone run with the following length
+
+	// Constructor which uses runs of the rays with the following number of runs in every ray
+	private MaterialRuns(int width, int height, int[] runCount, int[] runs) {
+		this.width = width;
+		this.height = height;
+		this.runs = runs;
+		rayStart = new int[width * height + 1];
+		int longest = 0;
+
+		for (int p = 0; p < width * height; p++) {
+			rayStart[p + 1] = rayStart[p] + runCount[p];
+		}
+		for (int run : runs) {
+			longest = Math.max(longest, run >> 1);
+		}
+		boneTransparency = powers(1d - BONE_OPACITY, longest);
+	}
+
+	// Finds the runs of the rays along the axis. Bands of image rows are independent, they are marched in parallel
+	public static MaterialRuns build(SliceWay sliceWay, MaterialVolume materials, MinMaxOctree octree) {
+		int imageWidth = materials.getSliceWidth(sliceWay);
+		int imageHeight = materials.getSliceHeight(sliceWay);
+		int pixels = imageWidth * imageHeight;
+		int tile = octree.getBlockSize(); // Every band crosses one layer of octree blocks
+		int[] runCount = new int[pixels]; // Number of runs of every ray
+		RunList[] bandRuns = new RunList[(imageHeight + tile - 1) / tile]; // Runs found by every band
+
+		IntStream.range(0, bandRuns.length).parallel().forEach(band -> {
+			bandRuns[band] = marchBand(sliceWay, materials, octree, band * tile,
+					Math.min((band + 1) * tile, imageHeight), runCount);
+		});
+
+		// Group the runs by the rays, runs of every ray keep their order
+		int[] position = new int[pixels];
+		for (int p = 1; p < pixels; p++) {
+			position[p] = position[p - 1] + runCount[p - 1];
+		}
+		int[] runs = new int[position[pixels - 1] + runCount[pixels - 1]];
+		for (RunList finished : bandRuns) {
+			for (int i = 0; i < finished.size; i++) {
+				runs[position[finished.rays[i]]++] = finished.runs[i];
+			}
+		}
+
+		return new MaterialRuns(imageWidth, imageHeight, runCount, runs);
+	}
+
+	// Finds the runs of the rays of image rows from 'fromRow' to 'toRow'. Rays of all the pixels are marched
+	// together slice by slice, the blocks which contain only transparent materials are skipped
+	private static RunList marchBand(SliceWay sliceWay, MaterialVolume materials, MinMaxOctree octree, int fromRow,
+			int toRow, int[] runCount) {
+		int imageWidth = materials.getSliceWidth(sliceWay);
+		int pixels = imageWidth * (toRow - fromRow); // Pixels of the band
+		int first = fromRow * imageWidth; // Ray of the first pixel of the band
+		int depth = materials.getDepth(sliceWay); // Number of elements on every ray
+		byte[] slice = new byte[pixels]; // Materials of the current ray elements of every pixel
+		int tile = octree.getBlockSize(); // Pixels are processed by squares which cross one octree block
+		boolean sliceRead; // Whether the current slice is copied from the material volume
+
+		byte[] rayMaterial = new byte[pixels]; // Last material composited by every ray, OTHER keeps it
+		byte[] runMaterial = new byte[pixels]; // Material of the run which is not finished yet
+		int[] runLength = new int[pixels]; // Length of the run which is not finished yet, 0 if there is none
+		double[] boneTransp = new double[pixels]; // Transparency of the ray after bone only, skin can only reduce it
+		RunList finished = new RunList(); // Finished runs of all the rays in the order they are found
+		Arrays.fill(rayMaterial, (byte) NONE);
+		Arrays.fill(boneTransp, 1d);
+
+		for (int d = 0; d < depth; d++) {
+			sliceRead = false;
+
+			for (int u0 = 0; u0 < imageWidth; u0 += tile) {
+				int uEnd = Math.min(u0 + tile, imageWidth);
+
+				// Air and soft tissue are transparent, they only reset the previous material of the rays
+				if (!mayContribute(octree, sliceWay, u0, fromRow, d)) {
+					for (int v = 0; v < toRow - fromRow; v++) {
+						Arrays.fill(rayMaterial, v * imageWidth + u0, v * imageWidth + uEnd, (byte) NONE);
+					}
+					continue;
+				}
+
+				if (!sliceRead) {
+					materials.copySliceRows(sliceWay, d, fromRow, toRow, slice);
+					sliceRead = true;
+				}
+
+				for (int v = 0; v < toRow - fromRow; v++) {
+					for (int p = v * imageWidth + u0; p < v * imageWidth + uEnd; p++) {
+						int material = RAY_MATERIAL[slice[p]];
+						if (material == KEEP) {
+							material = rayMaterial[p]; // Keep the previous material of the ray
+						}
+						rayMaterial[p] = (byte) material;
+
+						// Finished rays don't get new runs
+						if (material == NONE || boneTransp[p] < MIN_TRANSPARENCY) {
+							continue;
+						}
+
+						// Another material or too long run finishes the current run
+						if (runLength[p] > 0 && (runMaterial[p] != material || runLength[p] == MAX_RUN)) {
+							finished.add(first + p, (runLength[p] << 1) | runMaterial[p]);
+							runCount[first + p]++;
+							runLength[p] = 0;
+						}
+						runMaterial[p] = (byte) material;
+						runLength[p]++;
+						if (material == BONE) {
+							boneTransp[p] *= 1d - BONE_OPACITY;
+						}
+					}
+				}
+			}
+		}
+
+		// Finish the last runs
+		for (int p = 0; p < pixels; p++) {
+			if (runLength[p] > 0) {
+				finished.add(first + p, (runLength[p] << 1) | runMaterial[p]);
+				runCount[first + p]++;
+			}
+		}
+		return finished;
+	}
+
+	// Checks if the octree block of the slice pixel can contain skin, bone or the values which keep the ray material
+	private static boolean mayContribute(MinMaxOctree octree, SliceWay sliceWay, int u, int v, int index) {
+		int x, y, z;
+		switch (sliceWay) {
+		case X_AXIS: {
+			x = index;
+			y = u;
+			z = v;
+			break;
+		}
+		case Y_AXIS: {
+			x = u;
+			y = index;
+			z = v;
+			break;
+		}
+		default: {
+			x = u;
+			y = v;
+			z = index;
+		}
+		}
+		return octree.mayContain(x, y, z, Material.SKIN.getMin(), Material.SKIN.getMax())
+				|| octree.mayContain(x, y, z, Material.BONE.getMin(), Material.OTHER.getMax());
+	}
+
+	// Composites the image with the following skin opacity (0 - 1) into the buffer, rows are composited in parallel
+	public void render(double skinOpacity, PixelBuffer result) {
+		double[][] runTransparency = { powers(1d - skinOpacity, boneTransparency.length - 1), boneTransparency };
+
+		IntStream.range(0, height).parallel().forEach(v -> {
+			double r, g, b, transp, runTransp, runAlpha;
+
+			for (int p = v * width; p < (v + 1) * width; p++) {
+				r = 0d;
+				g = 0d;
+				b = 0d;
+				transp = 1d; // accumulating transparency of the ray
+
+				for (int i = rayStart[p]; i < rayStart[p + 1] && transp >= MIN_TRANSPARENCY; i++) {
+					int material = runs[i] & 1;
+					runTransp = runTransparency[material][runs[i] >> 1];
+					runAlpha = transp * (1d - runTransp);
+					r += runAlpha * RUN_RED[material];
+					g += runAlpha * RUN_GREEN[material];
+					b += runAlpha * RUN_BLUE[material];
+					transp *= runTransp;
+				}
+
+				// Fixes the problem then r goes out of bounds
+				result.set(p, PixelBuffer.argb(Math.min(1.0, r), Math.min(1.0, g), Math.min(1.0, b)));
+			}
+		});
+	}
+
+	// Finds 'base' to the power of every length from 0 to 'longest'
+	private static double[] powers(double base, int longest) {
+		double[] result = new double[longest + 1];
+		result[0] = 1d;
+		for (int n = 1; n <= longest; n++) {
+			result[n] = Math.pow(base, n);
+		}
+		return result;
+	}
+
+	/*
+	 * Stored values
+	 */
+
+	// Values which keep the runs: number of runs of every ray and then the runs, every value fits into 16 bits
+	public int[] toValues() {
+		int pixels = width * height;
+		int[] result = new int[pixels + runs.length];
+		for (int p = 0; p < pixels; p++) {
+			result[p] = rayStart[p + 1] - rayStart[p];
+		}
+		System.arraycopy(runs, 0, result, pixels, runs.length);
+		return result;
+	}
+
+	// Restores the runs from the values made by toValues, null if the values don't fit the image size
+	public static MaterialRuns fromValues(int width, int height, int[] values) {
+		int pixels = width * height;
+		if (values.length < pixels) {
+			return null;
+		}
+
+		int[] runCount = new int[pixels];
+		long total = 0;
+		for (int p = 0; p < pixels; p++) {
+			runCount[p] = values[p];
+			total += values[p];
+			if (values[p] < 0) {
+				return null;
+			}
+		}
+		if (total != values.length - pixels) {
+			return null;
+		}
+
+		int[] runs = new int[values.length - pixels];
+		System.arraycopy(values, pixels, runs, 0, runs.length);
+		for (int run : runs) {
+			if (run < 2) {
+				return null;
+			}
+		}
+		return new MaterialRuns(width, height, runCount, runs);
+	}
+
+	// Key of the cached runs, it contains the hash of every parameter which changes the runs, so the runs found with
+	// other material ranges or limits are not read
+	public static String getCacheKey(SliceWay sliceWay, int level) {
+		StringBuilder parameters = new StringBuilder();
+		for (Material material : Material.values()) {
+			parameters.append(material.getMin()).append(':').append(material.getMax()).append(':')
+					.append(RAY_MATERIAL[material.ordinal()]).append(',');
+		}
+		parameters.append(MAX_RUN).append(',').append(MIN_TRANSPARENCY).append(',').append(BONE_OPACITY);
+		return "runs-" + Integer.toHexString(parameters.toString().hashCode()) + "-" + sliceWay + "-level" + level;
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getRunCount() {
+		return runs.length;
+	}
+
+	// Growing list of the finished runs together with their rays
+	private static class RunList {
+		private int[] rays = new int[1024]; // Ray of every run
+		private int[] runs = new int[1024]; // Packed run
+		private int size; // Number of runs in the list
+
+		// Adds the run of the ray
+		private void add(int ray, int run) {
+			if (size == runs.length) {
+				rays = Arrays.copyOf(rays, size * 2);
+				runs = Arrays.copyOf(runs, size * 2);
+			}
+			rays[size] = ray;
+			runs[size] = run;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+import java.util.stream.IntStream;
+
+/**
+ * Material of every voxel of the volume (see Material), classified once and
+ * stored as one byte per voxel. Compositing passes read the materials instead
+ * of classifying the values again. X is the fastest changing axis, then Y and
+ * then Z
+ *
+ * @author s0s100
+ *
+ */
+
+public class MaterialVolume {
+	private static final Material[] MATERIALS = Material.values(); // Material of every ordinal
+
+	private final int sizeX, sizeY, sizeZ; // Length of every axis
+	private final byte[] materials; // Material ordinal of every voxel
+
+	// Constructor which allocates an empty volume of the following size, it should fit into one array
+	private MaterialVolume(int sizeX, int sizeY, int sizeZ) {
+		long length = (long) sizeX * sizeY * sizeZ;
+		if (length > VoxelLayout.MAX_CAPACITY) {
+			throw new IllegalArgumentException(
+					String.format("Volume %dx%dx%d is too big to be classified", sizeX, sizeY, sizeZ));
+		}
+
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		materials = new byte[(int) length];
+	}
+
+	// Classifies every voxel of the volume, Z slices are classified in parallel
+	public static MaterialVolume classify(VolumeSource volume) {
+		MaterialVolume result = new MaterialVolume(volume.getSizeX(), volume.getSizeY(), volume.getSizeZ());
+		int sizeX = result.sizeX;
+		int sizeY = result.sizeY;
+
+		IntStream.range(0, result.sizeZ).parallel().forEach(k -> {
+			short[] row = new short[sizeX];
+			int position = k * sizeY * sizeX;
+			for (int j = 0; j < sizeY; j++) {
+				volume.copyRow(j, k, row, 0);
+				for (int i = 0; i < sizeX; i++) {
+					result.materials[position++] = (byte) Material.of(row[i]).ordinal();
+				}
+			}
+		});
+		return result;
+	}
+
+	// Gets material ordinal at the following position
+	public byte getId(int x, int y, int z) {
+		return materials[(z * sizeY + y) * sizeX + x];
+	}
+
+	// Gets material at the following position
+	public Material get(int x, int y, int z) {
+		return MATERIALS[getId(x, y, z)];
+	}
+
+	// Copies material ordinals of the slice which is perpendicular to the axis, the same way as VolumeSource
+	public void copySlice(SliceWay sliceWay, int index, byte[] destination) {
+		copySliceRows(sliceWay, index, 0, getSliceHeight(sliceWay), destination);
+	}
+
+	// Copies rows from 'fromRow' (inclusive) to 'toRow' (exclusive) of the slice which is perpendicular to the axis
+	public void copySliceRows(SliceWay sliceWay, int index, int fromRow, int toRow, byte[] destination) {
+		int position = 0;
+
+		switch (sliceWay) {
+		case X_AXIS: {
+			// Image (y, z), every element is in a different row
+			for (int k = fromRow; k < toRow; k++) {
+				for (int j = 0; j < sizeY; j++) {
+					destination[position++] = materials[(k * sizeY + j) * sizeX + index];
+				}
+			}
+			break;
+		}
+		case Y_AXIS: {
+			// Image (x, z), every image row is a row of the volume
+			for (int k = fromRow; k < toRow; k++) {
+				System.arraycopy(materials, (k * sizeY + index) * sizeX, destination, position, sizeX);
+				position += sizeX;
+			}
+			break;
+		}
+		case Z_AXIS: {
+			// Image (x, y), the rows are stored together
+			System.arraycopy(materials, (index * sizeY + fromRow) * sizeX, destination, 0, (toRow - fromRow) * sizeX);
+			break;
+		}
+		}
+	}
+
+	// Width of the slice image perpendicular to the axis
+	public int getSliceWidth(SliceWay sliceWay) {
+		return sliceWay == SliceWay.X_AXIS ? sizeY : sizeX;
+	}
+
+	// Height of the slice image perpendicular to the axis
+	public int getSliceHeight(SliceWay sliceWay) {
+		return sliceWay == SliceWay.Z_AXIS ? sizeY : sizeZ;
+	}
+
+	// Number of slices along the axis
+	public int getDepth(SliceWay sliceWay) {
+		switch (sliceWay) {
+		case X_AXIS:
+			return sizeX;
+		case Y_AXIS:
+			return sizeY;
+		default:
+			return sizeZ;
+		}
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public int getSizeX() {
+		return sizeX;
+	}
+
+	public int getSizeY() {
+		return sizeY;
+	}
+
+	public int getSizeZ() {
+		return sizeZ;
+	}
+}
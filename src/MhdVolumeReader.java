@@ -0,0 +1,126 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+/**
+ * Reader of the MetaImage files (.mhd with detached data file or .mha with
+ * local data). Only 3D uncompressed volumes are supported
+ * 
+ * @author s0s100
+ *
+ */
+
+public class MhdVolumeReader extends RawVolumeReader {
+	@Override
+	public boolean canRead(File file) {
+		return hasExtension(file, ".mhd", ".mha");
+	}
+
+	@Override
+	public VolumeHeader readHeader(File file) throws IOException {
+		String text = readTextHeader(file);
+		int[] sizes = null;
+		String type = null;
+		ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+		File dataFile = null;
+		long headerSize = 0;
+		int position = 0; // Position of the current line in the file
+
+		// Go through every field of the header, data file is always the last one
+		while (dataFile == null && position < text.length()) {
+			int end = text.indexOf('\n', position);
+			if (end < 0) {
+				end = text.length();
+			}
+			String line = text.substring(position, end).trim();
+			position = end + 1;
+
+			int equals = line.indexOf('=');
+			if (equals < 0) {
+				continue;
+			}
+
+			String key = line.substring(0, equals).trim();
+			String value = line.substring(equals + 1).trim();
+			switch (key) {
+			case "NDims": {
+				if (parseSize(value, file) != 3) {
+					throw new IOException("Only 3D MetaImage files are supported: " + file);
+				}
+				break;
+			}
+			case "DimSize": {
+				String[] values = value.split("\\s+");
+				sizes = new int[values.length];
+				for (int i = 0; i < values.length; i++) {
+					sizes[i] = parseSize(values[i], file);
+				}
+				break;
+			}
+			case "ElementType": {
+				type = value;
+				break;
+			}
+			case "ElementByteOrderMSB":
+			case "BinaryDataByteOrderMSB": {
+				byteOrder = value.equalsIgnoreCase("true") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+				break;
+			}
+			case "CompressedData": {
+				if (value.equalsIgnoreCase("true")) {
+					throw new IOException("Compressed MetaImage files are not supported: " + file);
+				}
+				break;
+			}
+			case "HeaderSize": {
+				headerSize = Long.parseLong(value);
+				break;
+			}
+			case "ElementDataFile": {
+				dataFile = value.equalsIgnoreCase("LOCAL") ? file : new File(file.getParentFile(), value);
+				break;
+			}
+			}
+		}
+
+		// Check that the volume can be read
+		if (sizes == null || sizes.length != 3 || type == null || dataFile == null) {
+			throw new IOException("MetaImage header has no DimSize, ElementType or ElementDataFile: " + file);
+		}
+
+		int bytesPerVoxel;
+		boolean signed;
+		switch (type) {
+		case "MET_CHAR": {
+			bytesPerVoxel = 1;
+			signed = true;
+			break;
+		}
+		case "MET_UCHAR": {
+			bytesPerVoxel = 1;
+			signed = false;
+			break;
+		}
+		case "MET_SHORT": {
+			bytesPerVoxel = 2;
+			signed = true;
+			break;
+		}
+		case "MET_USHORT": {
+			bytesPerVoxel = 2;
+			signed = false;
+			break;
+		}
+		default:
+			throw new IOException("Unsupported MetaImage element type '" + type + "': " + file);
+		}
+
+		// Local data starts right after the header
+		if (dataFile.equals(file) && headerSize >= 0) {
+			headerSize += position;
+		}
+		long dataLength = (long) sizes[0] * sizes[1] * sizes[2] * bytesPerVoxel;
+		return new VolumeHeader(sizes[0], sizes[1], sizes[2], bytesPerVoxel, signed, byteOrder, dataFile,
+				findDataOffset(dataFile, headerSize, dataLength));
+	}
+}
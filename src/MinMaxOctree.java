@@ -0,0 +1,200 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Min-max octree of the volume values. The first level keeps min and max value
+ * of every block of the volume, every next level joins 2x2x2 blocks of the
+ * previous one until one block covers the whole volume. Ray loops use it to
+ * jump over the blocks which can't contain the values they are looking for
+ * 
+ * @author s0s100
+ *
+ */
+
+public class MinMaxOctree {
+	public static final int DEFAULT_BLOCK_SIZE = 8;
+
+	private final int sizeX, sizeY, sizeZ; // Length of every axis of the volume
+	private final int blockShift; // Side of the first level blocks is 2 to the power of blockShift
+	private final int[] blocksX, blocksY, blocksZ; // Number of blocks along every axis of every level
+	private final int[][] min, max; // min, max value of every block of every level, X is the fastest axis
+
+	// Constructor which creates the levels, the first level is filled by the factory methods
+	private MinMaxOctree(int sizeX, int sizeY, int sizeZ, int blockSize) {
+		if (Integer.bitCount(blockSize) != 1) {
+			throw new IllegalArgumentException("Block size should be a power of two: " + blockSize);
+		}
+
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		blockShift = Integer.numberOfTrailingZeros(blockSize);
+
+		// Levels are added until one block covers the volume
+		int levelCount = 1;
+		int maxSize = Math.max(sizeX, Math.max(sizeY, sizeZ));
+		while ((blockSize << (levelCount - 1)) < maxSize) {
+			levelCount++;
+		}
+
+		blocksX = new int[levelCount];
+		blocksY = new int[levelCount];
+		blocksZ = new int[levelCount];
+		min = new int[levelCount][];
+		max = new int[levelCount][];
+		for (int level = 0; level < levelCount; level++) {
+			int side = blockSize << level;
+			blocksX[level] = (sizeX + side - 1) / side;
+			blocksY[level] = (sizeY + side - 1) / side;
+			blocksZ[level] = (sizeZ + side - 1) / side;
+			min[level] = new int[blocksX[level] * blocksY[level] * blocksZ[level]];
+			max[level] = new int[min[level].length];
+			Arrays.fill(min[level], Integer.MAX_VALUE);
+			Arrays.fill(max[level], Integer.MIN_VALUE);
+		}
+	}
+
+	// Builds the octree of the volume with the following side of the smallest blocks
+	public static MinMaxOctree build(VolumeSource volume, int blockSize) {
+		int sizeX = volume.getSizeX();
+		int sizeY = volume.getSizeY();
+		int sizeZ = volume.getSizeZ();
+		MinMaxOctree result = new MinMaxOctree(sizeX, sizeY, sizeZ, blockSize);
+		int[] levelMin = result.min[0];
+		int[] levelMax = result.max[0];
+		int blocksX = result.blocksX[0];
+		int blocksY = result.blocksY[0];
+		int shift = result.blockShift;
+
+		// Every block layer is scanned by its own task
+		IntStream.range(0, result.blocksZ[0]).parallel().forEach(bz -> {
+			short[] row = new short[sizeX];
+			for (int k = bz << shift; k < Math.min((bz + 1) << shift, sizeZ); k++) {
+				for (int j = 0; j < sizeY; j++) {
+					volume.copyRow(j, k, row, 0);
+					int block = (bz * blocksY + (j >> shift)) * blocksX;
+
+					for (int i = 0; i < sizeX; i++) {
+						int element = row[i];
+						int position = block + (i >> shift);
+						if (element < levelMin[position]) {
+							levelMin[position] = element;
+						}
+						if (element > levelMax[position]) {
+							levelMax[position] = element;
+						}
+					}
+				}
+			}
+		});
+
+		result.buildLevels();
+		return result;
+	}
+
+	// Builds the octree of the bricked data, every brick is a block of the first level
+	public static MinMaxOctree build(int[] data, VoxelLayout layout) {
+		if (!layout.isBricked()) {
+			throw new IllegalArgumentException("Data should be stored brick by brick");
+		}
+
+		MinMaxOctree result = new MinMaxOctree(layout.getSizeX(), layout.getSizeY(), layout.getSizeZ(),
+				layout.getBrickSize());
+		result.fillBricks(data);
+		return result;
+	}
+
+	// Builds the octree again from the changed bricked data with the same layout, nothing is allocated
+	public void update(int[] data) {
+		for (int level = 1; level < min.length; level++) {
+			Arrays.fill(min[level], Integer.MAX_VALUE);
+			Arrays.fill(max[level], Integer.MIN_VALUE);
+		}
+		fillBricks(data);
+	}
+
+	// Fills the first level with min and max of every brick and then every next level
+	private void fillBricks(int[] data) {
+		int[] levelMin = min[0];
+		int[] levelMax = max[0];
+		int brickVolume = 1 << (3 * blockShift);
+
+		// Bricks are stored in the same order as the blocks, every brick is one piece of the array
+		for (int brick = 0; brick < levelMin.length; brick++) {
+			int localMin = Integer.MAX_VALUE;
+			int localMax = Integer.MIN_VALUE;
+			for (int i = brick * brickVolume; i < (brick + 1) * brickVolume; i++) {
+				int element = data[i];
+				if (element < localMin) {
+					localMin = element;
+				}
+				if (element > localMax) {
+					localMax = element;
+				}
+			}
+			levelMin[brick] = localMin;
+			levelMax[brick] = localMax;
+		}
+
+		buildLevels();
+	}
+
+	// Fills every next level from the previous one
+	private void buildLevels() {
+		for (int level = 1; level < min.length; level++) {
+			int previous = level - 1;
+			for (int bz = 0; bz < blocksZ[previous]; bz++) {
+				for (int by = 0; by < blocksY[previous]; by++) {
+					for (int bx = 0; bx < blocksX[previous]; bx++) {
+						int from = (bz * blocksY[previous] + by) * blocksX[previous] + bx;
+						int to = ((bz >> 1) * blocksY[level] + (by >> 1)) * blocksX[level] + (bx >> 1);
+						min[level][to] = Math.min(min[level][to], min[previous][from]);
+						max[level][to] = Math.max(max[level][to], max[previous][from]);
+					}
+				}
+			}
+		}
+	}
+
+	// Checks if the block of the level which contains the voxel can have values between 'low' and 'high' (inclusive)
+	public boolean mayContain(int level, int x, int y, int z, int low, int high) {
+		int shift = blockShift + level;
+		int block = ((z >> shift) * blocksY[level] + (y >> shift)) * blocksX[level] + (x >> shift);
+		return min[level][block] <= high && max[level][block] >= low;
+	}
+
+	// Checks if the smallest block which contains the voxel can have values between 'low' and 'high'
+	public boolean mayContain(int x, int y, int z, int low, int high) {
+		return mayContain(0, x, y, z, low, high);
+	}
+
+	// Finds the first Z starting from 'z' where the ray along Z can meet a value between 'low' and 'high'.
+	// Result is the start of the smallest block which may contain the value or sizeZ if there is no such block
+	public int findNextZ(int x, int y, int z, int low, int high) {
+		while (z < sizeZ) {
+			if (mayContain(0, x, y, z, low, high)) {
+				return z;
+			}
+
+			// Find the biggest empty block and jump to its end
+			int level = 0;
+			while (level + 1 < min.length && !mayContain(level + 1, x, y, z, low, high)) {
+				level++;
+			}
+			z = (z | ((1 << (blockShift + level)) - 1)) + 1;
+		}
+		return sizeZ;
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public int getBlockSize() {
+		return 1 << blockShift;
+	}
+
+	public int getLevelCount() {
+		return min.length;
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * Unit gradients (normals) of the bricked working volume of GradientRenderer,
+ * stored in 16 bits each with the octahedral encoding: the normal is projected
+ * onto the octahedron |x| + |y| + |z| = 1, its lower half is folded over the
+ * upper one and X and Y of the result are kept in 8 bits each. Gradients are
+ * found with the Sobel operator, a difference along the axis smoothed by
+ * (1, 2, 1) along the two other axes, so the noise of the data doesn't change
+ * the normals of the neighbour elements much. Normals of a brick are found
+ * once, when a normal of the brick is required first, so only the bricks of
+ * the visible surface are found and stored
+ *
+ * @author s0s100
+ *
+ */
+
+public class NormalVolume {
+	private static final int NONE = 0xffff; // Code of the elements with zero gradient
+	private static final int STEPS = 252; // Encoded components are from 1 to 253, 0 is kept exactly, no normal has the code NONE
+
+	private final int[] data; // Data of the working volume
+	private final VoxelLayout layout; // Position of every element of the working volume
+	private final int brickSize; // Side of the bricks
+	private final int brickMask; // Position inside the brick
+	private final int brickVolume; // Number of elements of every brick
+	private final short[][] brickNormals; // Encoded normals of every brick, null until the brick is required
+	private final int[] block; // Elements of the brick which is found with one element around it
+
+	// Constructor which finds no normals yet
+	public NormalVolume(int[] data, VoxelLayout layout) {
+		this.data = data;
+		this.layout = layout;
+		brickSize = layout.getBrickSize();
+		brickMask = brickSize - 1;
+		brickVolume = brickSize * brickSize * brickSize;
+		brickNormals = new short[layout.getCapacity() / brickVolume][];
+		block = new int[(brickSize + 2) * (brickSize + 2) * (brickSize + 2)];
+	}
+
+	// Gets the normal of the element, false if the element is outside of the volume or its gradient is zero.
+	// Normals of the brick can be found by the call, so it is used by one thread at a time
+	public boolean get(int x, int y, int z, double[] result) {
+		if (x < 0 || y < 0 || z < 0 || x >= layout.getSizeX() || y >= layout.getSizeY() || z >= layout.getSizeZ()) {
+			return false;
+		}
+
+		int index = layout.index(x, y, z);
+		int brick = index / brickVolume;
+		if (brickNormals[brick] == null) {
+			brickNormals[brick] = findBrick(x & ~brickMask, y & ~brickMask, z & ~brickMask);
+		}
+
+		int code = brickNormals[brick][index % brickVolume] & 0xffff;
+		if (code == NONE) {
+			return false;
+		}
+		decode(code, result);
+		return true;
+	}
+
+	// Finds the encoded normals of the brick starting from (x0, y0, z0), they have the same order as the elements
+	private short[] findBrick(int x0, int y0, int z0) {
+		int side = brickSize + 2; // Brick with one element around it
+		short[] result = new short[brickVolume];
+
+		// Copy the brick with the elements around it, the nearest element is used outside of the volume
+		int position = 0;
+		for (int z = z0 - 1; z <= z0 + brickSize; z++) {
+			for (int y = y0 - 1; y <= y0 + brickSize; y++) {
+				for (int x = x0 - 1; x <= x0 + brickSize; x++) {
+					block[position++] = data[layout.index(clamp(x, layout.getSizeX()), clamp(y, layout.getSizeY()),
+							clamp(z, layout.getSizeZ()))];
+				}
+			}
+		}
+
+		// Sobel gradient of every element of the brick
+		position = 0;
+		for (int z = 1; z <= brickSize; z++) {
+			for (int y = 1; y <= brickSize; y++) {
+				for (int x = 1; x <= brickSize; x++) {
+					int gx = 0, gy = 0, gz = 0;
+					for (int a = -1; a <= 1; a++) {
+						for (int b = -1; b <= 1; b++) {
+							int weight = (2 - Math.abs(a)) * (2 - Math.abs(b));
+							gx += weight * (block[((z + b) * side + y + a) * side + x + 1]
+									- block[((z + b) * side + y + a) * side + x - 1]);
+							gy += weight * (block[((z + b) * side + y + 1) * side + x + a]
+									- block[((z + b) * side + y - 1) * side + x + a]);
+							gz += weight * (block[((z + 1) * side + y + b) * side + x + a]
+									- block[((z - 1) * side + y + b) * side + x + a]);
+						}
+					}
+					result[position++] = (short) encode(gx, gy, gz);
+				}
+			}
+		}
+		return result;
+	}
+
+	// Nearest coordinate inside the axis with the following size
+	private static int clamp(int value, int size) {
+		return Math.max(0, Math.min(size - 1, value));
+	}
+
+	/*
+	 * Octahedral encoding
+	 */
+
+	// Encodes the direction of the vector, NONE for the zero vector
+	public static int encode(double x, double y, double z) {
+		double length = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		if (length == 0) {
+			return NONE;
+		}
+
+		// Project onto the octahedron, the lower half is folded over the diagonals
+		double u = x / length;
+		double v = y / length;
+		if (z < 0) {
+			double folded = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+			v = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+			u = folded;
+		}
+		return (quantize(u) << 8) | quantize(v);
+	}
+
+	// Decodes the direction into the array (x, y, z), the result is a unit vector
+	public static void decode(int code, double[] result) {
+		double u = dequantize(code >> 8);
+		double v = dequantize(code & 0xff);
+		double z = 1 - Math.abs(u) - Math.abs(v);
+
+		// Unfold the lower half
+		if (z < 0) {
+			double unfolded = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+			v = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+			u = unfolded;
+		}
+
+		double length = Math.sqrt(u * u + v * v + z * z);
+		result[0] = u / length;
+		result[1] = v / length;
+		result[2] = z / length;
+	}
+
+	// Converts the component (-1 - 1) to 1 - 253
+	private static int quantize(double value) {
+		return (int) Math.round((value + 1) / 2 * STEPS) + 1;
+	}
+
+	// Converts the encoded component back to -1 - 1
+	private static double dequantize(int value) {
+		return (value - 1) / (double) STEPS * 2 - 1;
+	}
+
+	/*
+	 * Getters
+	 */
+
+	// Number of bricks with found normals
+	public int getFoundBricks() {
+		int result = 0;
+		for (short[] normals : brickNormals) {
+			if (normals != null) {
+				result++;
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,148 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+/**
+ * Reader of the NRRD files (.nrrd with attached data or .nhdr with detached
+ * data file). Only 3D volumes with raw encoding are supported
+ * 
+ * @author s0s100
+ *
+ */
+
+public class NrrdVolumeReader extends RawVolumeReader {
+	@Override
+	public boolean canRead(File file) {
+		return hasExtension(file, ".nrrd", ".nhdr");
+	}
+
+	@Override
+	public VolumeHeader readHeader(File file) throws IOException {
+		String text = readTextHeader(file);
+		int[] sizes = null;
+		String type = null;
+		String encoding = "raw";
+		ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+		File dataFile = file;
+		long byteSkip = 0;
+		int position = 0; // Position of the current line in the file
+
+		if (!text.startsWith("NRRD")) {
+			throw new IOException("File is not a NRRD file: " + file);
+		}
+
+		// Go through every field of the header, it ends with an empty line
+		while (position < text.length()) {
+			int end = text.indexOf('\n', position);
+			if (end < 0) {
+				end = text.length();
+			}
+			String line = text.substring(position, end).trim();
+			position = end + 1;
+
+			if (line.isEmpty()) {
+				break;
+			}
+			int colon = line.indexOf(':');
+			if (line.startsWith("#") || colon < 0) {
+				continue;
+			}
+
+			String key = line.substring(0, colon).trim().toLowerCase();
+			String value = line.substring(colon + 1).trim();
+			switch (key) {
+			case "dimension": {
+				if (parseSize(value, file) != 3) {
+					throw new IOException("Only 3D NRRD files are supported: " + file);
+				}
+				break;
+			}
+			case "sizes": {
+				String[] values = value.split("\\s+");
+				sizes = new int[values.length];
+				for (int i = 0; i < values.length; i++) {
+					sizes[i] = parseSize(values[i], file);
+				}
+				break;
+			}
+			case "type": {
+				type = value.toLowerCase();
+				break;
+			}
+			case "encoding": {
+				encoding = value.toLowerCase();
+				break;
+			}
+			case "endian": {
+				byteOrder = value.equalsIgnoreCase("big") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+				break;
+			}
+			case "data file":
+			case "datafile": {
+				dataFile = new File(file.getParentFile(), value);
+				break;
+			}
+			case "byte skip":
+			case "byteskip": {
+				byteSkip = Long.parseLong(value);
+				break;
+			}
+			}
+		}
+
+		// Check that the volume can be read
+		if (sizes == null || sizes.length != 3 || type == null) {
+			throw new IOException("NRRD header has no sizes or type: " + file);
+		}
+		if (!encoding.equals("raw")) {
+			throw new IOException("Only raw NRRD encoding is supported, found '" + encoding + "': " + file);
+		}
+
+		int bytesPerVoxel;
+		boolean signed;
+		switch (type) {
+		case "signed char":
+		case "int8":
+		case "int8_t": {
+			bytesPerVoxel = 1;
+			signed = true;
+			break;
+		}
+		case "uchar":
+		case "unsigned char":
+		case "uint8":
+		case "uint8_t": {
+			bytesPerVoxel = 1;
+			signed = false;
+			break;
+		}
+		case "short":
+		case "short int":
+		case "signed short":
+		case "signed short int":
+		case "int16":
+		case "int16_t": {
+			bytesPerVoxel = 2;
+			signed = true;
+			break;
+		}
+		case "ushort":
+		case "unsigned short":
+		case "unsigned short int":
+		case "uint16":
+		case "uint16_t": {
+			bytesPerVoxel = 2;
+			signed = false;
+			break;
+		}
+		default:
+			throw new IOException("Unsupported NRRD type '" + type + "': " + file);
+		}
+
+		// Attached data starts right after the header
+		long headerSize = dataFile.equals(file) ? position + byteSkip : byteSkip;
+		long dataLength = (long) sizes[0] * sizes[1] * sizes[2] * bytesPerVoxel;
+		return new VolumeHeader(sizes[0], sizes[1], sizes[2], bytesPerVoxel, signed, byteOrder, dataFile,
+				findDataOffset(dataFile, headerSize, dataLength));
+	}
+}
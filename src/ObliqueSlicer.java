@@ -0,0 +1,144 @@
+import java.util.stream.IntStream;
+
+import javafx.scene.image.WritableImage;
+
+/**
+ * Renders slices of the volume along an arbitrary (oblique) plane. The plane
+ * is defined by its normal, which is turned by two angles, and its offset from
+ * the volume center along the normal. Every pixel is sampled with trilinear
+ * interpolation. Sample positions of a row are found by stepping along the
+ * plane, rows are sampled in parallel and the buffers are reused, so the plane
+ * can be changed while the user drags it
+ *
+ * @author s0s100
+ *
+ */
+
+public class ObliqueSlicer {
+	private static final int MAX_PITCH = 90; // Normal can be turned up and down by 90 degrees at most
+
+	private final VolumeSource volume; // Volume which is sliced
+	private final int sizeX, sizeY, sizeZ; // Length of every axis
+	private final double centerX, centerY, centerZ; // Center of the volume, planes turn around it
+	private final int side; // Length of every side of the image, any plane through the volume fits into it
+	private final short background; // Value of the pixels outside of the volume
+	private final short[] samples; // Sampled values of the current plane
+	private final PixelBuffer pixels; // Colors of the rendered image
+
+	private int yaw, pitch; // Angles of the normal around Y axis and from XZ plane (degrees)
+	private double offset; // Distance from the volume center to the plane
+
+	// Constructor which creates Z plane through the center of the volume
+	public ObliqueSlicer(VolumeSource volume, short background) {
+		this.volume = volume;
+		this.background = background;
+		sizeX = volume.getSizeX();
+		sizeY = volume.getSizeY();
+		sizeZ = volume.getSizeZ();
+		centerX = (sizeX - 1) / 2d;
+		centerY = (sizeY - 1) / 2d;
+		centerZ = (sizeZ - 1) / 2d;
+		side = findSide(sizeX, sizeY, sizeZ);
+		samples = new short[side * side];
+		pixels = new PixelBuffer(side, side);
+	}
+
+	// Side of the image which fits the volume with the following size turned in any way (its diagonal)
+	public static int findSide(int sizeX, int sizeY, int sizeZ) {
+		return (int) Math.ceil(Math.sqrt((double) sizeX * sizeX + (double) sizeY * sizeY + (double) sizeZ * sizeZ));
+	}
+
+	// Turns the plane, 'dx' turns it around Y axis and 'dy' tilts it up and down (degrees)
+	public void changeOrientation(int dx, int dy) {
+		yaw = (yaw + dx) % 360;
+		pitch = Math.max(-MAX_PITCH, Math.min(MAX_PITCH, pitch + dy));
+	}
+
+	// Samples the current plane into the array with side * side elements
+	public void sample(short[] destination) {
+		double yawRadians = Math.toRadians(yaw);
+		double pitchRadians = Math.toRadians(pitch);
+		double sinYaw = Math.sin(yawRadians), cosYaw = Math.cos(yawRadians);
+		double sinPitch = Math.sin(pitchRadians), cosPitch = Math.cos(pitchRadians);
+
+		// Normal of the plane and two unit vectors of the plane along the image rows and columns
+		double nx = cosPitch * sinYaw, ny = sinPitch, nz = cosPitch * cosYaw;
+		double ux = cosYaw, uy = 0, uz = -sinYaw;
+		double vx = -sinPitch * sinYaw, vy = cosPitch, vz = -sinPitch * cosYaw;
+
+		// Position of the first pixel, the image center is the nearest point of the plane to the volume center
+		double half = (side - 1) / 2d;
+		double originX = centerX + offset * nx - half * (ux + vx);
+		double originY = centerY + offset * ny - half * (uy + vy);
+		double originZ = centerZ + offset * nz - half * (uz + vz);
+
+		IntStream.range(0, side).parallel().forEach(row -> {
+			double x = originX + row * vx;
+			double y = originY + row * vy;
+			double z = originZ + row * vz;
+			int position = row * side;
+
+			// Step along the row
+			for (int column = 0; column < side; column++) {
+				destination[position++] = interpolate(x, y, z);
+				x += ux;
+				y += uy;
+				z += uz;
+			}
+		});
+	}
+
+	// Renders the current plane with the following contrast. The image is one of the two images used by turns, so
+	// only the last image should be shown
+	public WritableImage renderImage(WindowLevel windowLevel) {
+		sample(samples);
+		pixels.map(samples, samples.length, windowLevel);
+		return pixels.writeImage();
+	}
+
+	// Finds the value at the following position with trilinear interpolation, background outside of the volume
+	private short interpolate(double x, double y, double z) {
+		if (!(x >= 0 && y >= 0 && z >= 0 && x <= sizeX - 1 && y <= sizeY - 1 && z <= sizeZ - 1)) {
+			return background;
+		}
+
+		// Nearest elements, the last element of the axis is used twice
+		int x0 = (int) x, y0 = (int) y, z0 = (int) z;
+		int x1 = Math.min(x0 + 1, sizeX - 1), y1 = Math.min(y0 + 1, sizeY - 1), z1 = Math.min(z0 + 1, sizeZ - 1);
+		double fx = x - x0, fy = y - y0, fz = z - z0;
+
+		// Interpolate along X, then Y and then Z
+		double c00 = volume.get(x0, y0, z0) + fx * (volume.get(x1, y0, z0) - volume.get(x0, y0, z0));
+		double c10 = volume.get(x0, y1, z0) + fx * (volume.get(x1, y1, z0) - volume.get(x0, y1, z0));
+		double c01 = volume.get(x0, y0, z1) + fx * (volume.get(x1, y0, z1) - volume.get(x0, y0, z1));
+		double c11 = volume.get(x0, y1, z1) + fx * (volume.get(x1, y1, z1) - volume.get(x0, y1, z1));
+		double c0 = c00 + fy * (c10 - c00);
+		double c1 = c01 + fy * (c11 - c01);
+		return (short) Math.round(c0 + fz * (c1 - c0));
+	}
+
+	/*
+	 * Getters and setters
+	 */
+
+	public int getSide() {
+		return side;
+	}
+
+	public double getOffset() {
+		return offset;
+	}
+
+	// Distance from the plane to the volume center, the plane leaves the volume at half of the side
+	public void setOffset(double offset) {
+		this.offset = offset;
+	}
+
+	public int getYaw() {
+		return yaw;
+	}
+
+	public int getPitch() {
+		return pitch;
+	}
+}
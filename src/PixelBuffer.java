@@ -0,0 +1,114 @@
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Reusable buffer of image pixels stored as premultiplied ARGB integers.
+ * Renderers fill the buffer with primitive colors and every image is written
+ * with one PixelWriter call, so no Color object is created for a pixel. Only
+ * opaque colors are used, they are the same premultiplied or not
+ *
+ * @author s0s100
+ *
+ */
+
+public class PixelBuffer {
+	public static final int BLACK = 0xff000000;
+	public static final int WHITE = 0xffffffff;
+
+	private final int width, height; // Size of the image
+	private final int[] pixels; // Colors of the pixels row by row
+	private final WritableImage[] images = new WritableImage[2]; // Images which are written by turns, made when they are required first
+	private int nextImage; // Image which is written next
+
+	// Constructor which creates black buffer of the following size
+	public PixelBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		pixels = new int[width * height];
+		fill(BLACK);
+	}
+
+	// Sets color of the pixel
+	public void set(int u, int v, int argb) {
+		pixels[v * width + u] = argb;
+	}
+
+	// Sets color of the pixel with the following position in the buffer
+	public void set(int position, int argb) {
+		pixels[position] = argb;
+	}
+
+	// Sets color of the first 'length' pixels to the colors of the values from the window / level table
+	public void map(short[] values, int length, WindowLevel windowLevel) {
+		int[] table = windowLevel.getTable();
+		for (int p = 0; p < length; p++) {
+			pixels[p] = table[values[p] - Short.MIN_VALUE];
+		}
+	}
+
+	// Sets color of the square of pixels starting from (u, v)
+	public void fillSquare(int u, int v, int side, int argb) {
+		for (int row = v; row < v + side; row++) {
+			int start = row * width + u;
+			for (int p = start; p < start + side; p++) {
+				pixels[p] = argb;
+			}
+		}
+	}
+
+	// Sets color of every pixel
+	public void fill(int argb) {
+		for (int p = 0; p < pixels.length; p++) {
+			pixels[p] = argb;
+		}
+	}
+
+	// Creates a new image with the current pixels, the buffer can be changed afterwards
+	public WritableImage toImage() {
+		WritableImage image = new WritableImage(width, height);
+		image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), pixels, 0,
+				width);
+		return image;
+	}
+
+	// Writes the current pixels into one of the two images used by turns and returns it. The image returned
+	// by the call before the previous one is overwritten, so it is for the renderers which show only the last image
+	public WritableImage writeImage() {
+		if (images[nextImage] == null) {
+			images[nextImage] = new WritableImage(width, height);
+		}
+		WritableImage image = images[nextImage];
+		nextImage ^= 1;
+		image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), pixels, 0,
+				width);
+		return image;
+	}
+
+	// Opaque color with the following channels (0 - 1), rounded the same way as PixelWriter.setColor
+	public static int argb(double r, double g, double b) {
+		return BLACK | (channel(r) << 16) | (channel(g) << 8) | channel(b);
+	}
+
+	// Opaque gray color with the following brightness (0 - 1)
+	public static int gray(double value) {
+		int c = channel(value);
+		return BLACK | (c << 16) | (c << 8) | c;
+	}
+
+	// Converts the channel value (0 - 1) to 8 bits
+	private static int channel(double value) {
+		return (int) Math.round(value * 255d);
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+}
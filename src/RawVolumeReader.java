@@ -0,0 +1,160 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Base class for the formats which store voxels uncompressed, X row by X row and
+ * Z slice by Z slice. Subclasses only parse the header, voxels are decoded in
+ * bulk from the memory-mapped data file
+ *
+ * @author s0s100
+ *
+ */
+
+public abstract class RawVolumeReader implements VolumeReader {
+	private static final int MAX_TEXT_HEADER_LENGTH = 1 << 16; // Text headers are expected to be small
+
+	@Override
+	public void readSlices(VolumeHeader header, VoxelGrid grid, int fromZ, int toZ) throws IOException {
+		long sliceLength = header.getSliceLength();
+		int sliceVoxels = header.getSizeX() * header.getSizeY();
+		int slicesPerMap = (int) Math.max(1, Integer.MAX_VALUE / sliceLength); // Mapping can't be larger than 2GB
+		short[] slice = null; // Decoded slice for the bricked grids
+
+		try (FileChannel channel = FileChannel.open(header.getDataFile().toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < header.getDataOffset() + header.getDataLength()) {
+				throw new EOFException("Volume data file is smaller than expected: " + header.getDataFile());
+			}
+
+			// Map the required part of the file and copy it into the grid
+			for (int z = fromZ; z < toZ; z += slicesPerMap) {
+				int slices = Math.min(slicesPerMap, toZ - z);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+						header.getDataOffset() + z * sliceLength, slices * sliceLength);
+				buffer.order(header.getByteOrder());
+
+				if (!grid.getLayout().isBricked()) {
+					// Grid has the same element order as the file
+					decode(header, buffer, grid.getVoxels(), grid.index(0, 0, z), slices * sliceVoxels);
+				} else {
+					// Decode every slice separately and then put it into the bricks
+					if (slice == null) {
+						slice = new short[sliceVoxels];
+					}
+					for (int k = z; k < z + slices; k++) {
+						decode(header, buffer, slice, 0, sliceVoxels);
+						grid.setSlab(k, k + 1, slice, 0);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void readRegion(VolumeHeader header, FileChannel channel, int x0, int y0, int z0, int sizeX, int sizeY,
+			int sizeZ, short[] destination) throws IOException {
+		int bytesPerVoxel = header.getBytesPerVoxel();
+		long rowLength = (long) header.getSizeX() * bytesPerVoxel;
+		int spanLength = (int) ((sizeY - 1) * rowLength + sizeX * bytesPerVoxel); // Bytes of 1 slice of the box
+		ByteBuffer buffer = ByteBuffer.allocate(spanLength).order(header.getByteOrder());
+		int position = 0; // Position of the current row in the destination
+
+		// Read the part of every slice with the box rows in one call and decode only the box rows
+		for (int k = z0; k < z0 + sizeZ; k++) {
+			long start = header.getDataOffset() + k * header.getSliceLength() + y0 * rowLength
+					+ (long) x0 * bytesPerVoxel;
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, start + buffer.position()) < 0) {
+					throw new EOFException("Volume data file is smaller than expected: " + header.getDataFile());
+				}
+			}
+
+			for (int j = 0; j < sizeY; j++) {
+				buffer.position((int) (j * rowLength));
+				decode(header, buffer, destination, position, sizeX);
+				position += sizeX;
+			}
+		}
+	}
+
+	// Decodes the following number of elements from the buffer into the voxel array
+	private static void decode(VolumeHeader header, ByteBuffer in, short[] voxels, int offset, int count) {
+		if (header.getBytesPerVoxel() == 2) {
+			ShortBuffer shorts = in.asShortBuffer();
+			shorts.get(voxels, offset, count);
+			in.position(in.position() + count * 2); // View has its own position
+
+			// Unsigned values above the short range can't be stored, so they are clamped
+			if (!header.isSigned()) {
+				for (int i = offset; i < offset + count; i++) {
+					if (voxels[i] < 0) {
+						voxels[i] = Short.MAX_VALUE;
+					}
+				}
+			}
+		} else {
+			byte[] bytes = new byte[Math.min(count, 1 << 16)];
+			int done = 0;
+
+			// Widen 1 byte elements chunk by chunk
+			while (done < count) {
+				int chunk = Math.min(bytes.length, count - done);
+				in.get(bytes, 0, chunk);
+				for (int i = 0; i < chunk; i++) {
+					voxels[offset + done + i] = header.isSigned() ? bytes[i] : (short) (bytes[i] & 0xff);
+				}
+				done += chunk;
+			}
+		}
+	}
+
+	/*
+	 * Helper methods for the subclasses
+	 */
+
+	// Checks if the file name ends with one of the extensions
+	protected static boolean hasExtension(File file, String... extensions) {
+		String name = file.getName().toLowerCase();
+		for (String extension : extensions) {
+			if (name.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Reads the beginning of the file with a text header, every char of the result is 1 byte of the file
+	protected static String readTextHeader(File file) throws IOException {
+		byte[] bytes = new byte[(int) Math.min(file.length(), MAX_TEXT_HEADER_LENGTH)];
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			in.readFully(bytes);
+		}
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	// Finds position of the voxels in the data file, negative header size means the voxels are at the end of the file
+	protected static long findDataOffset(File dataFile, long headerSize, long dataLength) {
+		if (headerSize < 0) {
+			return dataFile.length() - dataLength;
+		}
+		return headerSize;
+	}
+
+	// Parses integer value of the header and reports the file in the error message
+	protected static int parseSize(String value, File file) throws IOException {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Wrong size '" + value + "' in the header of " + file, e);
+		}
+	}
+}
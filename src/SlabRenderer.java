@@ -0,0 +1,214 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import javafx.scene.image.WritableImage;
+
+/**
+ * Thick slab images: maximum, minimum or average intensity of the slices
+ * around the selected one (see IntensityProjection). The slab keeps running
+ * values of every pixel, a sum for the average and a monotonic deque of the
+ * slices for the maximum and minimum, so moving the slab by one slice reads
+ * one slice and drops another one whatever the thickness is. The deques keep
+ * the order of the slab movement, they are built again when it changes the
+ * direction
+ *
+ * @author s0s100
+ *
+ */
+
+public class SlabRenderer {
+	private final SliceWay sliceWay; // Axis of the slices
+	private final SliceType sliceType; // Maximum, minimum or average projection
+	private final VolumeSource volume; // Volume which is sliced
+	private final int thickness; // Number of slices in the slab (fewer near the ends of the axis)
+	private final int depth; // Number of slices along the axis
+	private final int imageWidth, imageHeight; // Size of the slices
+
+	private final short[][] slices; // Slices of the slab, slice 's' is kept at 's % thickness'
+	private final int[] sums; // Sum of the slab values of every pixel (average)
+	private final int[] deques; // Slices which can become the maximum or minimum, element 'i' of pixel 'p' is at 'i * pixels + p'
+	private final int[] dequeHead, dequeSize; // First element and number of elements of every deque
+	private final short[] values; // Projected values of the current slab
+	private final PixelBuffer pixels; // Colors of the rendered image
+
+	private int from, to; // Current slab contains slices from 'from' (inclusive) to 'to' (exclusive)
+	private int direction; // Direction of the last movement, 1 or -1
+
+	// Constructor which creates an empty slab, slices are read when the first image is requested
+	public SlabRenderer(SliceWay sliceWay, SliceType sliceType, VolumeSource volume, int thickness) {
+		this.sliceWay = sliceWay;
+		this.sliceType = sliceType;
+		this.volume = volume;
+		this.depth = volume.getDepth(sliceWay);
+		this.thickness = Math.max(1, Math.min(thickness, depth));
+		imageWidth = volume.getSliceWidth(sliceWay);
+		imageHeight = volume.getSliceHeight(sliceWay);
+		int pixelCount = imageWidth * imageHeight;
+
+		slices = new short[this.thickness][pixelCount];
+		boolean average = sliceType == SliceType.AverageProjection;
+		sums = average ? new int[pixelCount] : null;
+		deques = average ? null : new int[pixelCount * this.thickness];
+		dequeHead = average ? null : new int[pixelCount];
+		dequeSize = average ? null : new int[pixelCount];
+		values = new short[pixelCount];
+		pixels = new PixelBuffer(imageWidth, imageHeight);
+		direction = 1;
+	}
+
+	// Renders the slab around the following slice with the following contrast
+	public WritableImage renderImage(int index, WindowLevel windowLevel) {
+		moveTo(index);
+		pixels.map(values, values.length, windowLevel);
+		return pixels.toImage();
+	}
+
+	// Moves the slab to the following slice and finds the projected values
+	public void moveTo(int index) {
+		int newFrom = Math.max(0, index - thickness / 2);
+		int newTo = Math.min(depth, index - thickness / 2 + thickness);
+
+		if (newFrom >= to || newTo <= from) {
+			// Slabs don't have common slices, the new slab is read as a whole
+			clear();
+			direction = 1;
+			from = newFrom;
+			to = newFrom;
+			while (to < newTo) {
+				addSlice(to++);
+			}
+		} else if (newFrom + newTo != from + to) {
+			int newDirection = newFrom + newTo > from + to ? 1 : -1;
+			if (newDirection != direction) {
+				rebuildDeques(newDirection);
+			}
+
+			// Slices are removed first, their places are taken by the added slices
+			if (newDirection > 0) {
+				while (from < newFrom) {
+					removeSlice(from++);
+				}
+				while (to < newTo) {
+					addSlice(to++);
+				}
+			} else {
+				while (to > newTo) {
+					removeSlice(--to);
+				}
+				while (from > newFrom) {
+					addSlice(--from);
+				}
+			}
+		}
+		findValues();
+	}
+
+	// Reads the slice and adds it to the running values of every pixel, rows are updated in parallel
+	private void addSlice(int index) {
+		short[] slice = slices[index % thickness];
+		volume.copySlice(sliceWay, index, slice);
+
+		IntStream.range(0, imageHeight).parallel().forEach(v -> {
+			if (sums != null) {
+				for (int p = v * imageWidth; p < (v + 1) * imageWidth; p++) {
+					sums[p] += slice[p];
+				}
+			} else {
+				for (int p = v * imageWidth; p < (v + 1) * imageWidth; p++) {
+					pushToDeque(p, index);
+				}
+			}
+		});
+	}
+
+	// Removes the slice from the running values of every pixel
+	private void removeSlice(int index) {
+		short[] slice = slices[index % thickness];
+
+		IntStream.range(0, imageHeight).parallel().forEach(v -> {
+			if (sums != null) {
+				for (int p = v * imageWidth; p < (v + 1) * imageWidth; p++) {
+					sums[p] -= slice[p];
+				}
+			} else {
+				// Only the oldest slice of the deque can leave the slab
+				for (int p = v * imageWidth; p < (v + 1) * imageWidth; p++) {
+					if (dequeSize[p] > 0 && deques[dequeHead[p] * values.length + p] == index) {
+						dequeHead[p] = (dequeHead[p] + 1) % thickness;
+						dequeSize[p]--;
+					}
+				}
+			}
+		});
+	}
+
+	// Adds the slice which is already read to the deque of the pixel. Slices which can't become the maximum
+	// (minimum) while the new one is in the slab are dropped, so the first slice of the deque is the result
+	private void pushToDeque(int p, int index) {
+		int pixelCount = values.length;
+		short value = slices[index % thickness][p];
+		while (dequeSize[p] > 0) {
+			short last = slices[deques[(dequeHead[p] + dequeSize[p] - 1) % thickness * pixelCount + p] % thickness][p];
+			if (sliceType == SliceType.MaximumProjection ? last > value : last < value) {
+				break;
+			}
+			dequeSize[p]--;
+		}
+		deques[(dequeHead[p] + dequeSize[p]) % thickness * pixelCount + p] = index;
+		dequeSize[p]++;
+	}
+
+	// Builds the deques again with the slices of the slab added in the following direction
+	private void rebuildDeques(int newDirection) {
+		direction = newDirection;
+		if (sums != null) {
+			return;
+		}
+
+		clear();
+		IntStream.range(0, imageHeight).parallel().forEach(v -> {
+			for (int p = v * imageWidth; p < (v + 1) * imageWidth; p++) {
+				for (int i = 0; i < to - from; i++) {
+					pushToDeque(p, newDirection > 0 ? from + i : to - 1 - i);
+				}
+			}
+		});
+	}
+
+	// Removes every slice from the running values
+	private void clear() {
+		if (sums != null) {
+			Arrays.fill(sums, 0);
+		} else {
+			Arrays.fill(dequeHead, 0);
+			Arrays.fill(dequeSize, 0);
+		}
+	}
+
+	// Finds the projected value of every pixel from the running values
+	private void findValues() {
+		int count = to - from;
+
+		IntStream.range(0, imageHeight).parallel().forEach(v -> {
+			for (int p = v * imageWidth; p < (v + 1) * imageWidth; p++) {
+				if (sums != null) {
+					values[p] = (short) Math.round((double) sums[p] / count);
+				} else {
+					values[p] = slices[deques[dequeHead[p] * values.length + p] % thickness][p];
+				}
+			}
+		});
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public SliceType getSliceType() {
+		return sliceType;
+	}
+
+	public int getThickness() {
+		return thickness;
+	}
+}
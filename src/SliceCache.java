@@ -0,0 +1,160 @@
+import java.util.LinkedHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Bounded cache of raw volume slices with least recently used eviction. Slices
+ * are copied from the volume when they are requested first and are turned into
+ * images when they are shown, so the contrast can be changed without reading
+ * them again. The background thread copies the slices around the last
+ * requested one, more of them in the direction the slices are moving, so the
+ * next slider positions are usually ready
+ *
+ * @author s0s100
+ *
+ */
+
+public class SliceCache {
+	public static final int DEFAULT_CAPACITY = 32;
+	private static final int PREFETCH_AHEAD = 8; // Slices prefetched in the direction of the movement
+	private static final int PREFETCH_BEHIND = 2; // Slices prefetched in the opposite direction
+
+	private final IntFunction<short[]> reader; // Copies the slice with the following index from the volume
+	private final int sliceCount; // Number of slices along the axis
+	private final int capacity; // Max number of slices in the cache
+	private final LinkedHashMap<Integer, short[]> slices; // Cached slices in access order
+	private int current = -1; // Last requested slice, prefetch goes around it
+	private int direction = 1; // Direction of the last slice change
+	private int reading = -1; // Slice which is being read by the background thread
+	private Thread prefetcher; // Background thread, started with the first request
+
+	// Statistics of the cache usage
+	private long hits, misses, prefetches;
+
+	// Constructor which creates an empty cache of the axis with the following number of slices
+	public SliceCache(IntFunction<short[]> reader, int sliceCount, int capacity) {
+		if (capacity <= PREFETCH_AHEAD + PREFETCH_BEHIND) {
+			throw new IllegalArgumentException("Cache capacity should be bigger than the prefetched slices: " + capacity);
+		}
+
+		this.reader = reader;
+		this.sliceCount = sliceCount;
+		this.capacity = capacity;
+		slices = new LinkedHashMap<Integer, short[]>(16, 0.75f, true);
+	}
+
+	// Gets the slice, it is read by the current thread if it is not in the cache. The slice shouldn't be changed
+	public short[] getSlice(int index) {
+		synchronized (this) {
+			if (index != current) {
+				direction = index > current ? 1 : -1;
+				current = index;
+				startPrefetch();
+				notifyAll();
+			}
+
+			// Wait for the slice if it is being read already
+			while (reading == index) {
+				waitUninterruptibly();
+			}
+
+			short[] slice = slices.get(index);
+			if (slice != null) {
+				hits++;
+				return slice;
+			}
+			misses++;
+		}
+
+		short[] slice = reader.apply(index);
+		put(index, slice);
+		return slice;
+	}
+
+	// Puts the slice into the cache and removes the least recently used slices
+	private synchronized void put(int index, short[] slice) {
+		slices.put(index, slice);
+		while (slices.size() > capacity) {
+			slices.remove(slices.keySet().iterator().next());
+		}
+	}
+
+	// Starts the background thread, should be called with the lock
+	private void startPrefetch() {
+		if (prefetcher != null) {
+			return;
+		}
+
+		prefetcher = new Thread(() -> {
+			while (true) {
+				int index;
+				synchronized (this) {
+					while ((index = findMissingSlice()) < 0) {
+						waitUninterruptibly();
+					}
+					reading = index;
+					prefetches++;
+				}
+
+				short[] slice = null;
+				try {
+					slice = reader.apply(index);
+				} finally {
+					synchronized (this) {
+						if (slice != null) {
+							put(index, slice);
+						}
+						reading = -1;
+						notifyAll();
+					}
+				}
+			}
+		}, "Slice prefetch");
+		prefetcher.setDaemon(true);
+		prefetcher.start();
+	}
+
+	// Finds the nearest slice around the current one which is not in the cache, -1 if there is none
+	private int findMissingSlice() {
+		for (int step = 1; step <= PREFETCH_AHEAD; step++) {
+			int ahead = current + direction * step;
+			if (ahead >= 0 && ahead < sliceCount && !slices.containsKey(ahead)) {
+				return ahead;
+			}
+
+			int behind = current - direction * step;
+			if (step <= PREFETCH_BEHIND && behind >= 0 && behind < sliceCount && !slices.containsKey(behind)) {
+				return behind;
+			}
+		}
+		return -1;
+	}
+
+	// Waits for the notification, interruption is kept for the caller
+	private void waitUninterruptibly() {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Statistics
+	 */
+
+	// Part of the requests which were served from the cache
+	public synchronized double getHitRate() {
+		long requests = hits + misses;
+		return requests == 0 ? 0d : (double) hits / requests;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Slice cache: %d/%d slices, hit rate %.1f%% (%d hits, %d misses), %d prefetches",
+				slices.size(), capacity, getHitRate() * 100, hits, misses, prefetches);
+	}
+}
@@ -1,4 +1,4 @@
-// Used at ImageCollection class to choose between Q1 and Q2 rendering
+// Used at ImageCollection class to choose between Q1, Q2 and intensity projection rendering
 public enum SliceType {
-	NormalSlice, VolumeRender
+	NormalSlice, VolumeRender, MaximumProjection, MinimumProjection, AverageProjection
 }
@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Volume data which is not loaded into the memory. Voxels are read from the
+ * disk brick by brick when they are required and kept in a bounded LRU cache,
+ * so the volume can be much larger than the heap. Slices ahead of the current
+ * one are prefetched in the background
+ *
+ * @author s0s100
+ *
+ */
+
+public class StreamingVolume implements VolumeSource {
+	public static final int DEFAULT_BRICK_SIZE = 32;
+	private static final double PREFETCH_CACHE_PART = 0.25; // Max part of the cache filled by one prefetched layer
+
+	private final VolumeHeader header; // Format of the volume data file
+	private final VolumeReader reader; // Reader which decodes the bricks
+	private final FileChannel channel; // Opened volume data file
+	private final int sizeX, sizeY, sizeZ; // Length of every axis
+	private final int brickShift, brickMask; // Brick side is 2 to the power of brickShift
+	private final BrickCache cache; // Recently used bricks
+	private final int[] lastLayer; // Last requested brick layer along every axis, used to find prefetch direction
+	private final int[] lastDirection; // Last slice move direction along every axis
+
+	// Constructor which opens the data file, the cache keeps up to 'cacheCapacity' bricks
+	public StreamingVolume(VolumeHeader header, VolumeReader reader, int brickSize, int cacheCapacity)
+			throws IOException {
+		if (Integer.bitCount(brickSize) != 1) {
+			throw new IllegalArgumentException("Brick size should be a power of two: " + brickSize);
+		}
+
+		this.header = header;
+		this.reader = reader;
+		channel = FileChannel.open(header.getDataFile().toPath(), StandardOpenOption.READ);
+		sizeX = header.getSizeX();
+		sizeY = header.getSizeY();
+		sizeZ = header.getSizeZ();
+		brickShift = Integer.numberOfTrailingZeros(brickSize);
+		brickMask = brickSize - 1;
+		cache = new BrickCache(this::loadBrick, cacheCapacity);
+		lastLayer = new int[] { -1, -1, -1 };
+		lastDirection = new int[] { 1, 1, 1 };
+	}
+
+	// Reads one brick from the disk, edge bricks are only partly filled
+	private short[] loadBrick(int bx, int by, int bz) throws IOException {
+		int brickSize = brickMask + 1;
+		int x0 = bx << brickShift;
+		int y0 = by << brickShift;
+		int z0 = bz << brickShift;
+		int width = Math.min(brickSize, sizeX - x0);
+		int height = Math.min(brickSize, sizeY - y0);
+		int depth = Math.min(brickSize, sizeZ - z0);
+		short[] brick = new short[brickSize * brickSize * brickSize];
+
+		if (width == brickSize && height == brickSize) {
+			reader.readRegion(header, channel, x0, y0, z0, width, height, depth, brick);
+		} else {
+			// Move rows of the smaller box to their positions in the brick
+			short[] box = new short[width * height * depth];
+			reader.readRegion(header, channel, x0, y0, z0, width, height, depth, box);
+			for (int k = 0; k < depth; k++) {
+				for (int j = 0; j < height; j++) {
+					System.arraycopy(box, (k * height + j) * width, brick, ((k << brickShift) + j) << brickShift,
+							width);
+				}
+			}
+		}
+		return brick;
+	}
+
+	// Position of the element inside its brick
+	private int inside(int x, int y, int z) {
+		return ((((z & brickMask) << brickShift) | (y & brickMask)) << brickShift) | (x & brickMask);
+	}
+
+	@Override
+	public short get(int x, int y, int z) {
+		return cache.getBrick(x >> brickShift, y >> brickShift, z >> brickShift)[inside(x, y, z)];
+	}
+
+	@Override
+	public void copyRow(int y, int z, short[] destination, int offset) {
+		int brickSize = brickMask + 1;
+		for (int x = 0; x < sizeX; x += brickSize) {
+			short[] brick = cache.getBrick(x >> brickShift, y >> brickShift, z >> brickShift);
+			System.arraycopy(brick, inside(x, y, z), destination, offset + x, Math.min(brickSize, sizeX - x));
+		}
+	}
+
+	@Override
+	public void copySlice(SliceWay sliceWay, int index, short[] destination) {
+		int brickSize = brickMask + 1;
+		int width = getSliceWidth(sliceWay);
+		int height = getSliceHeight(sliceWay);
+		prefetchAhead(sliceWay, index);
+
+		// Go through every brick which crosses the slice and copy its part of the slice
+		for (int v0 = 0; v0 < height; v0 += brickSize) {
+			for (int u0 = 0; u0 < width; u0 += brickSize) {
+				int uEnd = Math.min(u0 + brickSize, width);
+				int vEnd = Math.min(v0 + brickSize, height);
+
+				switch (sliceWay) {
+				case X_AXIS: {
+					short[] brick = cache.getBrick(index >> brickShift, u0 >> brickShift, v0 >> brickShift);
+					for (int v = v0; v < vEnd; v++) {
+						for (int u = u0; u < uEnd; u++) {
+							destination[v * width + u] = brick[inside(index, u, v)];
+						}
+					}
+					break;
+				}
+				case Y_AXIS: {
+					short[] brick = cache.getBrick(u0 >> brickShift, index >> brickShift, v0 >> brickShift);
+					for (int v = v0; v < vEnd; v++) {
+						System.arraycopy(brick, inside(u0, index, v), destination, v * width + u0, uEnd - u0);
+					}
+					break;
+				}
+				case Z_AXIS: {
+					short[] brick = cache.getBrick(u0 >> brickShift, v0 >> brickShift, index >> brickShift);
+					for (int v = v0; v < vEnd; v++) {
+						System.arraycopy(brick, inside(u0, v, index), destination, v * width + u0, uEnd - u0);
+					}
+					break;
+				}
+				}
+			}
+		}
+	}
+
+	// Starts loading the next layer of bricks in the direction the slices are moving. Only a part of the cache is
+	// prefetched, so the prefetched bricks don't evict the bricks of the current layer
+	private void prefetchAhead(SliceWay sliceWay, int index) {
+		int axis = sliceWay.ordinal();
+		int layer = index >> brickShift;
+		int next;
+
+		synchronized (lastLayer) {
+			if (layer == lastLayer[axis]) {
+				return;
+			}
+			if (lastLayer[axis] >= 0) {
+				lastDirection[axis] = layer > lastLayer[axis] ? 1 : -1;
+			}
+			lastLayer[axis] = layer;
+			next = layer + lastDirection[axis];
+		}
+
+		if (next < 0 || next > (getDepth(sliceWay) - 1) >> brickShift) {
+			return;
+		}
+
+		int bricksU = (getSliceWidth(sliceWay) + brickMask) >> brickShift;
+		int bricksV = (getSliceHeight(sliceWay) + brickMask) >> brickShift;
+		int maxBricks = Math.min(bricksU * bricksV, (int) (cache.getCapacity() * PREFETCH_CACHE_PART));
+		for (int brick = 0; brick < maxBricks; brick++) {
+			int bu = brick % bricksU;
+			int bv = brick / bricksU;
+			switch (sliceWay) {
+			case X_AXIS:
+				cache.prefetch(next, bu, bv);
+				break;
+			case Y_AXIS:
+				cache.prefetch(bu, next, bv);
+				break;
+			case Z_AXIS:
+				cache.prefetch(bu, bv, next);
+				break;
+			}
+		}
+	}
+
+	// Closes the data file and stops the prefetch
+	public void close() throws IOException {
+		cache.close();
+		channel.close();
+	}
+
+	/*
+	 * Getters
+	 */
+
+	@Override
+	public int getSizeX() {
+		return sizeX;
+	}
+
+	@Override
+	public int getSizeY() {
+		return sizeY;
+	}
+
+	@Override
+	public int getSizeZ() {
+		return sizeZ;
+	}
+
+	public BrickCache getCache() {
+		return cache;
+	}
+}
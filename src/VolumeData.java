@@ -1,190 +1,402 @@
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
- * Class which contains 3D volume data with min and max values in the data set
+ * Class which contains 3D volume data with statistics of the data set values.
+ * Size and element format of the volume are taken from the file by one of the
+ * VolumeReaders. The file is decoded by Z slabs in parallel, statistics are
+ * collected in the same pass. Volumes which don't fit into the heap are
+ * streamed from the disk (out-of-core mode). Reduced copies of the volume
+ * (VolumePyramid) are built when they are required first. Data derived from
+ * the volume can be kept between launches in the DerivedDataCache, the volume
+ * is identified by the hash of its content.
  * 
+ * The volume can be loaded progressively: openData prepares an empty volume
+ * right away and loadDataAsync fills it slab by slab in the background, slices
+ * below getLoadedSlices can be shown while the rest is being read
+ *
  * @author s0s100
  *
  */
 
 public class VolumeData {
-	// Skull default size of the image
-	public static final int CT_X_AXIS = 256;// X axis length
-	public static final int CT_Y_AXIS = 256;// Y axis length
-	public static final int CT_Z_AXIS = 113;// Z axis length
+	// Volume is streamed from the disk if it takes more than this part of the heap
+	private static final double MAX_HEAP_PART = 0.5;
+	// Part of the heap used by the brick cache in the out-of-core mode by default
+	private static final double CACHE_HEAP_PART = 0.25;
+	// Part of the heap used by the stored pyramid levels in the out-of-core mode
+	private static final double PYRAMID_HEAP_PART = 0.25;
+	// Number of voxels read at once to find statistics in the out-of-core mode
+	private static final int SCAN_VOXELS = 1 << 22;
+	// Number of Z slices decoded by one parallel task, equal to the default brick size
+	private static final int SLAB_SLICES = 16;
 
-	// For new data
-	//public static int CT_X_AXIS = 492;// X axis length
-	//public static int CT_Y_AXIS = 492;// Y axis length
-	//public static int CT_Z_AXIS = 442;// Z axis length
+	// Receives progress of the volume loading, it is called from the loading thread
+	public interface LoadListener {
+		// Z slices from 0 to 'loadedSlices' (exclusive) are read
+		void slicesLoaded(int loadedSlices);
 
-	private short cthead[][][]; // 3D volume data set
-	private short min, max; // min, max value in the 3D volume data set
+		// Every voxel is read
+		void loadFinished();
 
-	// Basic constructor with variable initialization
-	public VolumeData() {
-		cthead = new short[CT_X_AXIS][CT_Y_AXIS][CT_Z_AXIS];
-		this.min = Short.MAX_VALUE;
-		this.max = Short.MIN_VALUE;
+		// Volume data file can't be read or the loaded data can't be used
+		void loadFailed(Exception e);
 	}
 
-	// Reads data in the following path
+	private VolumeSource cthead; // 3D volume data set
+	private volatile VolumeStatistics statistics; // min, max values, histogram and slice statistics of the data set read so far
+	private int brickSize; // Side of the bricks of the grid, 0 means the linear layout
+	private boolean outOfCore; // Whether the volume should be streamed from the disk even if it fits into the heap
+	private int cacheCapacity; // Max number of bricks in the cache in the out-of-core mode, 0 - based on the heap size
+	private int pyramidLevels = VolumePyramid.DEFAULT_LEVELS; // Number of reduced levels of the volume
+	private VolumePyramid pyramid; // Reduced copies of the volume, built when they are required first
+	private MinMaxOctree[] octrees; // Min-max octree of every pyramid level, built when it is required first
+	private MaterialVolume[] materials; // Classified voxels of every pyramid level, built when they are required first
+	private File cacheDirectory = DerivedDataCache.getDefaultDirectory(); // Directory of the derived data, null - no cache
+	private volatile DerivedDataCache derivedCache; // Derived data of the loaded volume, null if it is not used
+	private VolumeHeader header; // Format of the opened volume data file
+	private VolumeReader reader; // Reader of the opened volume data file
+	private volatile int loadedSlices; // Number of Z slices from the start of the volume which are read
+	private volatile boolean loaded; // Whether every voxel is read
+
+	// Reads data in the following path using the reader which understands the file format
 	public void readData(String path) throws IOException {
-		DataInputStream in;
-		File file;
+		openData(path);
+		loadData(null);
+	}
 
-		// Open input stream and store all the data from 3D volume data set
-		try {
-			file = new File(path);
-			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
-			readInfoSet(in);
-			in.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+	// Reads the header of the file and prepares an empty volume, voxels are read by loadData
+	public void openData(String path) throws IOException {
+		File file = new File(path);
+		reader = VolumeReaders.forFile(file);
+		header = reader.readHeader(file);
+		statistics = new VolumeStatistics(header.getSizeZ());
+		synchronized (this) {
+			pyramid = null;
+			octrees = null;
+			materials = null;
+		}
+		derivedCache = null;
+		loaded = false;
+		System.out.println("Reading volume data " + header);
+
+		// Stream the volume if it is required, it is too big for the heap or it doesn't fit into one array
+		long capacity = VoxelLayout.findCapacity(header.getSizeX(), header.getSizeY(), header.getSizeZ(), brickSize);
+		if (outOfCore || capacity * 2 > Runtime.getRuntime().maxMemory() * MAX_HEAP_PART
+				|| capacity > VoxelLayout.MAX_CAPACITY) {
+			openStreamingData();
+		} else {
+			openGridData();
 		}
 	}
 
-	// Goes through every element in the dataset and then put the value at the required position
-	private void readInfoSet(DataInputStream in) throws IOException {
+	// Allocates the grid for the whole volume
+	private void openGridData() {
+		// Grid has exactly the size of the volume, voxels are decoded in bulk
+		if (brickSize > 0) {
+			cthead = new VoxelGrid(
+					VoxelLayout.bricked(header.getSizeX(), header.getSizeY(), header.getSizeZ(), brickSize));
+		} else {
+			cthead = new VoxelGrid(header.getSizeX(), header.getSizeY(), header.getSizeZ());
+		}
+		loadedSlices = 0;
+	}
 
-		for (int k = 0; k < CT_Z_AXIS; k++) {
-			for (int j = 0; j < CT_Y_AXIS; j++) {
-				for (int i = 0; i < CT_X_AXIS; i++) {
-					short nextElement = readInfoByte(in);
-					cthead[i][j][k] = nextElement;
-				}
-			}
+	// Opens the volume in the out-of-core mode, every slice can be read right away
+	private void openStreamingData() throws IOException {
+		int brickSize = StreamingVolume.DEFAULT_BRICK_SIZE;
+		int capacity = cacheCapacity;
+		if (capacity <= 0) {
+			long brickBytes = (long) brickSize * brickSize * brickSize * 2;
+			capacity = (int) Math.max(1, Runtime.getRuntime().maxMemory() * CACHE_HEAP_PART / brickBytes);
 		}
 
-		System.out.println("Min and max dataset values: " + min + " " + max);
+		System.out.println("Volume is streamed from the disk with " + capacity + " cached bricks");
+		cthead = new StreamingVolume(header, reader, brickSize, capacity);
+		loadedSlices = header.getSizeZ();
 	}
 
-	// Reads 1 element of the data
-	private short readInfoByte(DataInputStream in) throws IOException {
-		short bytePos1, bytePos2;
-		short result;
+	// Reads the opened volume slab by slab from the start, the listener (can be null) is informed after every slab.
+	// Streamed volumes are only scanned to find the statistics
+	public void loadData(LoadListener listener) throws IOException {
+		VoxelGrid grid = cthead instanceof VoxelGrid ? (VoxelGrid) cthead : null;
+		int alignment = header.getSlabAlignment();
+		int slabSlices = grid != null ? SLAB_SLICES
+				: Math.max(1, SCAN_VOXELS / (header.getSizeX() * header.getSizeY()));
 
-		// Data element saved using wrong Endianness, so transform the data into short value
-		bytePos1 = (short) ((in.readByte()) & 0xff);
-		bytePos2 = (short) ((in.readByte()) & 0xff);
-		result = (short) ((bytePos2 << 8) | bytePos1);
+		// Slabs should consist of whole parts which are decoded together
+		slabSlices = (slabSlices + alignment - 1) / alignment * alignment;
 
-		// Set min and max value of the file after reading the element value
-		if (result < min) {
-			min = result;
-		} else if (result > max) {
-			max = result;
+		// The first step is one slab so the first slices appear quickly, next steps grow until every thread is busy
+		int maxStep = slabSlices * ForkJoinPool.commonPool().getParallelism();
+		int step = slabSlices;
+
+		try (FileChannel channel = grid != null ? null
+				: FileChannel.open(header.getDataFile().toPath(), StandardOpenOption.READ)) {
+			// Next slab starts where the previous one ends, the step is changed inside the loop
+			int toZ;
+			for (int fromZ = 0; fromZ < header.getSizeZ(); fromZ = toZ) {
+				toZ = Math.min(fromZ + step, header.getSizeZ());
+				VolumeStatistics loaded = new VolumeStatistics(header.getSizeZ());
+				loaded.merge(statistics);
+				loaded.merge(readInfoSet(new SlabReader(header, reader, grid, channel, slabSlices, fromZ, toZ)));
+
+				// Statistics are replaced after they are complete, so they can be used by the other threads
+				statistics = loaded;
+				if (grid != null) {
+					loadedSlices = toZ;
+				}
+				if (listener != null) {
+					listener.slicesLoaded(toZ);
+				}
+				step = Math.min(step * 2, maxStep);
+			}
 		}
+		System.out.println("Min and max dataset values: " + getMin() + " " + getMax());
 
-		// Debug
-		// System.out.print(byteInfo1 + " " + byteInfo2 + " and positive:");
-		// System.out.println(bytePos1 + " " + bytePos1);
-		// System.out.println("Result value is: " + result);
+		// Derived data is found by the size and the content of the volume
+		if (cacheDirectory != null) {
+			derivedCache = new DerivedDataCache(cacheDirectory, String.format("%dx%dx%d-%016x", header.getSizeX(),
+					header.getSizeY(), header.getSizeZ(), statistics.getContentHash()));
+		}
+		loaded = true;
 
-		return result;
+		if (listener != null) {
+			listener.loadFinished();
+		}
 	}
 
-	// Reads data from the other source
-	public void readData2(String path) throws IOException {
-		DataInputStream in;
-		File file;
+	// Starts loadData in the background thread, errors are passed to the listener. Unchecked errors of the
+	// listener are passed too, so the loading never stops silently
+	public void loadDataAsync(LoadListener listener) {
+		Thread thread = new Thread(() -> {
+			try {
+				loadData(listener);
+			} catch (IOException | RuntimeException e) {
+				listener.loadFailed(e);
+			}
+		}, "Volume loading");
+		thread.setDaemon(true);
+		thread.start();
+	}
 
-		// Open input stream and store all the data from 3D volume data set
+	// Decodes the slabs in parallel and merges their statistics
+	private static VolumeStatistics readInfoSet(SlabReader task) throws IOException {
 		try {
-			file = new File(path);
-			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
-			readInfoSet2(in);
-			in.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		}
-	}
-
-	// Goes through every element in the dataset and then put the value at the required position
-	private void readInfoSet2(DataInputStream in) throws IOException {
-		short sizeX, sizeY, sizeZ;
-		sizeX = (short) ((in.readByte()) & 0xff);
-		sizeY = (short) ((in.readByte()) & 0xff);
-		sizeZ = (short) ((in.readByte()) & 0xff);
-		// Haven't used them :|
-		/*CT_X_AXIS = sizeX;
-		CT_Y_AXIS = sizeY;
-		CT_Z_AXIS = sizeZ;*/
-
-		for (int k = 0; k < CT_Z_AXIS; k++) {
-			for (int j = 0; j < CT_Y_AXIS; j++) {
-				for (int i = 0; i < CT_X_AXIS; i++) {
-					short nextElement = readInfoByte2(in);
-					cthead[i][j][k] = nextElement;
-				}
-			}
+			return ForkJoinPool.commonPool().invoke(task);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
 		}
-
-		System.out.println("Min and max dataset values: " + min + " " + max);
 	}
 
-	// Reads 1 element of the data
-	private short readInfoByte2(DataInputStream in) throws IOException {
-		short bytePos1;
-		short result = 0;
+	// Task which decodes Z slices from 'fromZ' to 'toZ' and finds their statistics. Big ranges are split in half
+	private static class SlabReader extends RecursiveTask<VolumeStatistics> {
+		private static final long serialVersionUID = 1L;
 
-		/*
-		  FILE *fp = fopen("filename.dat","rb");
-		
-			unsigned short vuSize[3];
-			fread((void*)vuSize,3,sizeof(unsigned short),fp);
-		
-			int uCount = int(vuSize[0])*int(vuSize[1])*int(vuSize[2]);
-			unsigned short *pData = new unsigned short[uCount];
-			fread((void*)pData,uCount,sizeof(unsigned short),fp);
-		
-			fclose(fp);
-		 */
+		private final VolumeHeader header;
+		private final VolumeReader reader;
+		private final VoxelGrid grid; // Grid to fill, null if the voxels are not kept
+		private final FileChannel channel; // Opened data file for the volumes which are not kept
+		private final int slabSlices; // Max number of slices decoded by one task
+		private final int fromZ, toZ;
+
+		SlabReader(VolumeHeader header, VolumeReader reader, VoxelGrid grid, FileChannel channel, int slabSlices,
+				int fromZ, int toZ) {
+			this.header = header;
+			this.reader = reader;
+			this.grid = grid;
+			this.channel = channel;
+			this.slabSlices = slabSlices;
+			this.fromZ = fromZ;
+			this.toZ = toZ;
+		}
 
-		bytePos1 = (short) ((in.readByte()) & 0xffff);
-		//bytePos2 = (short) ((in.readByte()) & 0xffff);
-		//bytePos3 = (short) ((in.readByte()) & 0xffff);
-		result = bytePos1;
+		@Override
+		protected VolumeStatistics compute() {
+			// Split the range at the slab border
+			if (toZ - fromZ > slabSlices) {
+				int middle = fromZ + Math.max(1, (toZ - fromZ) / slabSlices / 2) * slabSlices;
+				SlabReader left = new SlabReader(header, reader, grid, channel, slabSlices, fromZ, middle);
+				SlabReader right = new SlabReader(header, reader, grid, channel, slabSlices, middle, toZ);
+				left.fork();
+				VolumeStatistics result = right.compute();
+				result.merge(left.join());
+				return result;
+			}
+
+			try {
+				return readSlab();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
 
-		// Data element saved using wrong Endianness, so transform the data into short value
-		/*bytePos1 = (short) ((in.readByte()) & 0xff);
-		bytePos2 = (short) ((in.readByte()) & 0xff);
-		result = (short) ((bytePos2 << 8) | bytePos1);*/
-		// bytePos1 = (short) (in.readByte() & 0xff);
+		// Decodes the slab and goes through its elements while they are still in the cache
+		private VolumeStatistics readSlab() throws IOException {
+			VolumeStatistics result = new VolumeStatistics(header.getSizeZ());
+			int sizeX = header.getSizeX();
+			int sizeY = header.getSizeY();
 
-		// Set min and max value of the file after reading the element value
-		if (result < min) {
-			min = result;
-		} else if (result > max) {
-			max = result;
+			if (grid != null) {
+				short[] row = new short[sizeX];
+				reader.readSlices(header, grid, fromZ, toZ);
+				for (int k = fromZ; k < toZ; k++) {
+					for (int j = 0; j < sizeY; j++) {
+						grid.copyRow(j, k, row, 0);
+						result.add(row, 0, sizeX, k);
+					}
+				}
+			} else {
+				int sliceVoxels = sizeX * sizeY;
+				short[] slab = new short[(toZ - fromZ) * sliceVoxels];
+				reader.readRegion(header, channel, 0, 0, fromZ, sizeX, sizeY, toZ - fromZ, slab);
+				for (int k = fromZ; k < toZ; k++) {
+					result.add(slab, (k - fromZ) * sliceVoxels, sliceVoxels, k);
+				}
+			}
+			return result;
 		}
+	}
 
-		// Debug
-		// System.out.print(byteInfo1 + " " + byteInfo2 + " and positive:");
-		// System.out.println(bytePos1 + " " + bytePos1);
-		// System.out.println("Result value is: " + result);
+	// Sets side of the bricks which will be used by the grid, 0 to store the voxels row by row
+	public void setBrickSize(int brickSize) {
+		this.brickSize = brickSize;
+	}
+
+	// Sets number of reduced volume levels
+	public void setPyramidLevels(int pyramidLevels) {
+		this.pyramidLevels = pyramidLevels;
+	}
+
+	// Sets directory of the derived data cache, null to build the derived data every time
+	public void setCacheDirectory(File cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
 
-		return result;
+	// Makes the volume always streamed from the disk with the following number of cached bricks (0 - based on the heap)
+	public void setOutOfCore(boolean outOfCore, int cacheCapacity) {
+		this.outOfCore = outOfCore;
+		this.cacheCapacity = cacheCapacity;
+	}
+
+	// Closes the data file of the streamed volume
+	public void close() throws IOException {
+		if (cthead instanceof StreamingVolume) {
+			((StreamingVolume) cthead).close();
+		}
 	}
 
 	/*
 	 * Getters
 	 */
 
-	public short[][][] getVolume() {
+	public VolumeSource getVolume() {
 		return cthead;
 	}
 
+	// Number of Z slices from the start of the volume which can be shown
+	public int getLoadedSlices() {
+		return loadedSlices;
+	}
+
+	// Checks if every voxel is read
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	// Volume of the following pyramid level, level 0 is the original volume
+	public VolumeSource getVolume(int level) {
+		return level == 0 ? cthead : getPyramid().getLevel(level);
+	}
+
+	// Reduced levels are built from the loaded volume when they are required first. Levels of the streamed volume
+	// are stored only if they fit into a part of the heap
+	public synchronized VolumePyramid getPyramid() {
+		if (pyramid == null) {
+			long start = System.nanoTime();
+			long maxLevelBytes = cthead instanceof StreamingVolume
+					? (long) (Runtime.getRuntime().maxMemory() * PYRAMID_HEAP_PART)
+					: Long.MAX_VALUE;
+			pyramid = new VolumePyramid(cthead, pyramidLevels, brickSize, maxLevelBytes);
+			System.out.println(String.format("Volume pyramid with %d levels is built in %d ms", pyramidLevels,
+					(System.nanoTime() - start) / 1000000));
+		}
+		return pyramid;
+	}
+
+	// Min-max octree of the following pyramid level used to skip empty space
+	public synchronized MinMaxOctree getOctree(int level) {
+		if (octrees == null) {
+			octrees = new MinMaxOctree[pyramidLevels + 1];
+		}
+		if (octrees[level] == null) {
+			octrees[level] = MinMaxOctree.build(getVolume(level), MinMaxOctree.DEFAULT_BLOCK_SIZE);
+		}
+		return octrees[level];
+	}
+
+	// Finest level from the following one which is kept in the memory. Streamed volume is never kept, so its data
+	// is classified from the stored pyramid level, the coarsest level is used if no level is stored
+	public int findStoredLevel(int level) {
+		if (level == 0 && !(cthead instanceof StreamingVolume)) {
+			return 0;
+		}
+
+		VolumePyramid pyramid = getPyramid();
+		for (int stored = Math.max(level, 1); stored < pyramid.getLevelCount(); stored++) {
+			if (pyramid.isStored(stored)) {
+				return stored;
+			}
+		}
+		return pyramid.getLevelCount() - 1;
+	}
+
+	// Materials of the voxels of the following pyramid level, classified once for every compositing pass. The level
+	// should be found by findStoredLevel, so the materials of the streamed volume fit into the heap
+	public synchronized MaterialVolume getMaterials(int level) {
+		if (materials == null) {
+			materials = new MaterialVolume[pyramidLevels + 1];
+		}
+		if (materials[level] == null) {
+			long start = System.nanoTime();
+			materials[level] = MaterialVolume.classify(getVolume(level));
+			System.out.println(String.format("Material volume of level %d is classified in %d ms", level,
+					(System.nanoTime() - start) / 1000000));
+		}
+		return materials[level];
+	}
+
+	// Cache of the data derived from the loaded volume, null if the cache is not used
+	public DerivedDataCache getDerivedCache() {
+		return derivedCache;
+	}
+
+	public int getSizeX() {
+		return cthead.getSizeX();
+	}
+
+	public int getSizeY() {
+		return cthead.getSizeY();
+	}
+
+	public int getSizeZ() {
+		return cthead.getSizeZ();
+	}
+
+	public VolumeStatistics getStatistics() {
+		return statistics;
+	}
+
 	public short getMin() {
-		return min;
+		return statistics.getMin();
 	}
 
 	public short getMax() {
-		return max;
+		return statistics.getMax();
 	}
 }
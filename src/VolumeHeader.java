@@ -0,0 +1,97 @@
+import java.io.File;
+import java.nio.ByteOrder;
+
+/**
+ * Class which describes how the voxels are stored in a volume data file. It is
+ * created by a VolumeReader after parsing the file header
+ * 
+ * @author s0s100
+ *
+ */
+
+public class VolumeHeader {
+	private final int sizeX, sizeY, sizeZ; // Length of every axis
+	private final int bytesPerVoxel; // 1 or 2 bytes for every element
+	private final boolean signed; // Whether the stored values are signed
+	private final ByteOrder byteOrder; // Endianness of the 2 byte elements
+	private final File dataFile; // File with the voxel values (can be different from the header file)
+	private final long dataOffset; // Position of the first voxel in the data file
+
+	// Constructor with all the information about the stored volume
+	public VolumeHeader(int sizeX, int sizeY, int sizeZ, int bytesPerVoxel, boolean signed, ByteOrder byteOrder,
+			File dataFile, long dataOffset) {
+		if (sizeX <= 0 || sizeY <= 0 || sizeZ <= 0) {
+			throw new IllegalArgumentException(
+					String.format("Volume size should be positive: %dx%dx%d", sizeX, sizeY, sizeZ));
+		}
+		if (bytesPerVoxel != 1 && bytesPerVoxel != 2) {
+			throw new IllegalArgumentException("Only 8 and 16 bit volumes are supported: " + bytesPerVoxel * 8);
+		}
+
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.bytesPerVoxel = bytesPerVoxel;
+		this.signed = signed;
+		this.byteOrder = byteOrder;
+		this.dataFile = dataFile;
+		this.dataOffset = dataOffset;
+	}
+
+	// Number of bytes used by one Z slice in the data file
+	public long getSliceLength() {
+		return (long) sizeX * sizeY * bytesPerVoxel;
+	}
+
+	// Number of bytes used by all the voxels in the data file
+	public long getDataLength() {
+		return getSliceLength() * sizeZ;
+	}
+
+	// Number of Z slices which should be decoded together, slabs are aligned to it
+	public int getSlabAlignment() {
+		return 1;
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public int getSizeX() {
+		return sizeX;
+	}
+
+	public int getSizeY() {
+		return sizeY;
+	}
+
+	public int getSizeZ() {
+		return sizeZ;
+	}
+
+	public int getBytesPerVoxel() {
+		return bytesPerVoxel;
+	}
+
+	public boolean isSigned() {
+		return signed;
+	}
+
+	public ByteOrder getByteOrder() {
+		return byteOrder;
+	}
+
+	public File getDataFile() {
+		return dataFile;
+	}
+
+	public long getDataOffset() {
+		return dataOffset;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%dx%dx%d, %d bit %s, %s", sizeX, sizeY, sizeZ, bytesPerVoxel * 8,
+				signed ? "signed" : "unsigned", byteOrder);
+	}
+}
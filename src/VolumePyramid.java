@@ -0,0 +1,207 @@
+import java.util.stream.IntStream;
+
+/**
+ * Multi-resolution copies of the volume (mip pyramid). Level 0 is the volume
+ * itself, every next level has half of the size along every axis. Every voxel
+ * of the level is the average of the 2x2x2 block values which belong to the
+ * most common material of the block, so thin bones and the skin are not mixed
+ * with the air around them. Levels which don't fit into the memory budget
+ * (levels of the streamed volumes) are not stored, their rows are reduced
+ * from the previous level when they are read, so the first stored level is
+ * reduced straight from the streamed bricks
+ * 
+ * @author s0s100
+ *
+ */
+
+public class VolumePyramid {
+	public static final int DEFAULT_LEVELS = 3; // Levels 1/2, 1/4 and 1/8 are built by default
+
+	private final VolumeSource[] levels; // Volume of every level, level 0 is the original volume
+
+	// Constructor which builds the following number of reduced levels, bricked if the brick size is positive.
+	// Only the levels which take up to 'maxLevelBytes' are stored
+	public VolumePyramid(VolumeSource volume, int levelCount, int brickSize, long maxLevelBytes) {
+		levels = new VolumeSource[levelCount + 1];
+		levels[0] = volume;
+
+		// Every level is reduced from the previous one
+		for (int level = 1; level <= levelCount; level++) {
+			VolumeSource previous = levels[level - 1];
+			long capacity = VoxelLayout.findCapacity((previous.getSizeX() + 1) / 2, (previous.getSizeY() + 1) / 2,
+					(previous.getSizeZ() + 1) / 2, brickSize);
+			if (capacity * 2 <= maxLevelBytes && capacity <= VoxelLayout.MAX_CAPACITY) {
+				levels[level] = reduce(previous, brickSize);
+			} else {
+				levels[level] = new ReducedVolume(previous);
+			}
+		}
+	}
+
+	// Creates the volume with half of the size, Z slices are reduced in parallel
+	private static VoxelGrid reduce(VolumeSource source, int brickSize) {
+		int sizeX = (source.getSizeX() + 1) / 2;
+		int sizeY = (source.getSizeY() + 1) / 2;
+		int sizeZ = (source.getSizeZ() + 1) / 2;
+		VoxelGrid result = brickSize > 0 ? new VoxelGrid(VoxelLayout.bricked(sizeX, sizeY, sizeZ, brickSize))
+				: new VoxelGrid(sizeX, sizeY, sizeZ);
+
+		IntStream.range(0, sizeZ).parallel().forEach(k -> {
+			short[] rows = new short[source.getSizeX() * 4]; // Two rows of two slices used by the current row
+			short[] row = new short[sizeX]; // Reduced row
+			int[] count = new int[Material.values().length]; // Number of block voxels of every material
+			int[] sum = new int[count.length]; // Sum of block voxel values of every material
+
+			for (int j = 0; j < sizeY; j++) {
+				reduceRow(source, j, k, rows, count, sum, row, 0);
+				result.setRow(j, k, row, 0);
+			}
+		});
+		return result;
+	}
+
+	// Reduces the row (j, k) of the level below the source into the destination. 'rows', 'count' and 'sum' are
+	// working arrays of 4 source rows and of the material number
+	private static void reduceRow(VolumeSource source, int j, int k, short[] rows, int[] count, int[] sum,
+			short[] destination, int offset) {
+		int sourceX = source.getSizeX();
+		int sizeX = (sourceX + 1) / 2;
+
+		// Odd sizes repeat the last row and slice
+		for (int r = 0; r < 4; r++) {
+			int y = Math.min(j * 2 + (r & 1), source.getSizeY() - 1);
+			int z = Math.min(k * 2 + (r >> 1), source.getSizeZ() - 1);
+			source.copyRow(y, z, rows, r * sourceX);
+		}
+
+		for (int i = 0; i < sizeX; i++) {
+			int x0 = i * 2;
+			int x1 = Math.min(x0 + 1, sourceX - 1);
+			for (int m = 0; m < count.length; m++) {
+				count[m] = 0;
+				sum[m] = 0;
+			}
+			for (int r = 0; r < 4; r++) {
+				addVoxel(rows[r * sourceX + x0], count, sum);
+				addVoxel(rows[r * sourceX + x1], count, sum);
+			}
+
+			// Most common material, denser material wins if the numbers are equal
+			int material = 0;
+			for (int m = 1; m < count.length; m++) {
+				if (count[m] >= count[material]) {
+					material = m;
+				}
+			}
+			destination[offset + i] = (short) (sum[material] / count[material]);
+		}
+	}
+
+	// Adds the value to the statistics of its material
+	private static void addVoxel(short value, int[] count, int[] sum) {
+		int material = Material.of(value).ordinal();
+		count[material]++;
+		sum[material] += value;
+	}
+
+	// Finds the finest level which is not bigger than the following size along every axis
+	public int findLevel(int maxSize) {
+		for (int level = 0; level < levels.length; level++) {
+			VolumeSource volume = levels[level];
+			if (Math.max(volume.getSizeX(), Math.max(volume.getSizeY(), volume.getSizeZ())) <= maxSize) {
+				return level;
+			}
+		}
+		return levels.length - 1;
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public VolumeSource getLevel(int level) {
+		return levels[level];
+	}
+
+	// Checks if the level is kept in the memory, otherwise it is reduced every time it is read
+	public boolean isStored(int level) {
+		return levels[level] instanceof VoxelGrid;
+	}
+
+	// Number of levels including the original volume
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	// Level which is not stored, every row is reduced from the previous level when it is read
+	private static class ReducedVolume implements VolumeSource {
+		private final VolumeSource source; // Previous level
+		private final int sizeX, sizeY, sizeZ; // Length of every axis
+
+		// Constructor of the level with half of the source size
+		public ReducedVolume(VolumeSource source) {
+			this.source = source;
+			sizeX = (source.getSizeX() + 1) / 2;
+			sizeY = (source.getSizeY() + 1) / 2;
+			sizeZ = (source.getSizeZ() + 1) / 2;
+		}
+
+		@Override
+		public int getSizeX() {
+			return sizeX;
+		}
+
+		@Override
+		public int getSizeY() {
+			return sizeY;
+		}
+
+		@Override
+		public int getSizeZ() {
+			return sizeZ;
+		}
+
+		// Single elements are reduced with their row, rows should be used where it is possible
+		@Override
+		public short get(int x, int y, int z) {
+			short[] row = new short[sizeX];
+			copyRow(y, z, row, 0);
+			return row[x];
+		}
+
+		@Override
+		public void copyRow(int y, int z, short[] destination, int offset) {
+			int[] count = new int[Material.values().length];
+			reduceRow(source, y, z, new short[source.getSizeX() * 4], count, new int[count.length], destination,
+					offset);
+		}
+
+		@Override
+		public void copySlice(SliceWay sliceWay, int index, short[] destination) {
+			short[] row = new short[sizeX];
+			int width = getSliceWidth(sliceWay);
+			int height = getSliceHeight(sliceWay);
+
+			// Slice is assembled from the rows which cross it
+			for (int v = 0; v < height; v++) {
+				switch (sliceWay) {
+				case X_AXIS: {
+					for (int u = 0; u < width; u++) {
+						copyRow(u, v, row, 0);
+						destination[v * width + u] = row[index];
+					}
+					break;
+				}
+				case Y_AXIS: {
+					copyRow(index, v, destination, v * width);
+					break;
+				}
+				case Z_AXIS: {
+					copyRow(v, index, destination, v * width);
+					break;
+				}
+				}
+			}
+		}
+	}
+}
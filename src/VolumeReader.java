@@ -0,0 +1,27 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Interface of the volume data file formats. Reader parses the header of the
+ * file first, so the grid can be created with exact size, and then decodes the
+ * voxels slice by slice
+ * 
+ * @author s0s100
+ *
+ */
+
+public interface VolumeReader {
+	// Checks if the file can be read by this reader
+	boolean canRead(File file) throws IOException;
+
+	// Reads size and element format of the volume stored in the file
+	VolumeHeader readHeader(File file) throws IOException;
+
+	// Decodes Z slices from 'fromZ' (inclusive) to 'toZ' (exclusive) into the grid
+	void readSlices(VolumeHeader header, VoxelGrid grid, int fromZ, int toZ) throws IOException;
+
+	// Decodes a box of the volume from the opened data file, result is stored X row by X row and Z slice by Z slice
+	void readRegion(VolumeHeader header, FileChannel channel, int x0, int y0, int z0, int sizeX, int sizeY, int sizeZ,
+			short[] destination) throws IOException;
+}
@@ -0,0 +1,43 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collection of all known volume data readers. Used to find the reader for a
+ * file
+ * 
+ * @author s0s100
+ *
+ */
+
+public class VolumeReaders {
+	private static final List<VolumeReader> readers = new ArrayList<VolumeReader>();
+
+	// Readers with headers go first, CThead file is recognized only by its length
+	static {
+		readers.add(new CompressedVolumeReader());
+		readers.add(new NrrdVolumeReader());
+		readers.add(new MhdVolumeReader());
+		readers.add(new DatVolumeReader());
+		readers.add(new CTheadVolumeReader());
+	}
+
+	private VolumeReaders() {
+	}
+
+	// Adds a reader of another file format, it will be checked before the default readers
+	public static synchronized void register(VolumeReader reader) {
+		readers.add(0, reader);
+	}
+
+	// Finds the reader which can read the file
+	public static synchronized VolumeReader forFile(File file) throws IOException {
+		for (VolumeReader reader : readers) {
+			if (reader.canRead(file)) {
+				return reader;
+			}
+		}
+		throw new IOException("Unknown volume data format: " + file);
+	}
+}
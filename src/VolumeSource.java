@@ -0,0 +1,48 @@
+/**
+ * Interface of the volume data which can be sliced and rendered. The voxels
+ * can be stored in memory (VoxelGrid) or read from the disk on demand
+ * (StreamingVolume)
+ * 
+ * @author s0s100
+ *
+ */
+
+public interface VolumeSource {
+	// Length of every axis
+	int getSizeX();
+
+	int getSizeY();
+
+	int getSizeZ();
+
+	// Gets the element at the following position
+	short get(int x, int y, int z);
+
+	// Copies X row with the following Y and Z coordinates
+	void copyRow(int y, int z, short[] destination, int offset);
+
+	// Copies slice which is perpendicular to the axis. Result is stored row by row with getSliceWidth elements in every row
+	void copySlice(SliceWay sliceWay, int index, short[] destination);
+
+	// Width of the slice image perpendicular to the axis
+	default int getSliceWidth(SliceWay sliceWay) {
+		return sliceWay == SliceWay.X_AXIS ? getSizeY() : getSizeX();
+	}
+
+	// Height of the slice image perpendicular to the axis
+	default int getSliceHeight(SliceWay sliceWay) {
+		return sliceWay == SliceWay.Z_AXIS ? getSizeY() : getSizeZ();
+	}
+
+	// Number of slices along the axis
+	default int getDepth(SliceWay sliceWay) {
+		switch (sliceWay) {
+		case X_AXIS:
+			return getSizeX();
+		case Y_AXIS:
+			return getSizeY();
+		default:
+			return getSizeZ();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+import java.util.Arrays;
+
+/**
+ * Statistics of the volume values collected while the volume is decoded: min
+ * and max values, histogram of all 16 bit values and min, max and non-zero
+ * voxel count of every Z slice. Later stages use them instead of going through
+ * the volume again. Hash of every slice is found as well, together they
+ * identify the volume content (see getContentHash)
+ *
+ * @author s0s100
+ *
+ */
+
+public class VolumeStatistics {
+	private static final int HISTOGRAM_SIZE = 1 << 16; // Every possible short value
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L; // FNV-1a hash constants
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private short min, max; // min, max value in the volume
+	private final long[] histogram; // Number of voxels with every value, value + 32768 is the position
+	private final short[] sliceMin, sliceMax; // min, max value of every Z slice
+	private final int[] sliceNonZero; // Number of non-zero voxels of every Z slice
+	private final long[] sliceHash; // FNV-1a hash of the values of every Z slice, 0 if the slice is not added
+
+	// Constructor which creates empty statistics of the volume with the following number of Z slices
+	public VolumeStatistics(int sizeZ) {
+		min = Short.MAX_VALUE;
+		max = Short.MIN_VALUE;
+		histogram = new long[HISTOGRAM_SIZE];
+		sliceMin = new short[sizeZ];
+		sliceMax = new short[sizeZ];
+		sliceNonZero = new int[sizeZ];
+		sliceHash = new long[sizeZ];
+		Arrays.fill(sliceMin, Short.MAX_VALUE);
+		Arrays.fill(sliceMax, Short.MIN_VALUE);
+	}
+
+	// Adds the following elements of the Z slice to the statistics, elements of the slice should be added in order
+	public void add(short[] voxels, int offset, int length, int slice) {
+		short localMin = sliceMin[slice];
+		short localMax = sliceMax[slice];
+		int nonZero = 0;
+		long hash = sliceHash[slice] == 0 ? FNV_OFFSET : sliceHash[slice];
+
+		for (int i = offset; i < offset + length; i++) {
+			short nextElement = voxels[i];
+			histogram[nextElement - Short.MIN_VALUE]++;
+
+			// Both of the values should be checked, the first element can be min and max at the same time
+			if (nextElement < localMin) {
+				localMin = nextElement;
+			}
+			if (nextElement > localMax) {
+				localMax = nextElement;
+			}
+			if (nextElement != 0) {
+				nonZero++;
+			}
+			hash = (hash ^ (nextElement & 0xffff)) * FNV_PRIME;
+		}
+
+		sliceMin[slice] = localMin;
+		sliceMax[slice] = localMax;
+		sliceNonZero[slice] += nonZero;
+		sliceHash[slice] = hash;
+		min = (short) Math.min(min, localMin);
+		max = (short) Math.max(max, localMax);
+	}
+
+	// Adds statistics of the other part of the same volume, every slice should be added to one of the parts only
+	public void merge(VolumeStatistics other) {
+		min = (short) Math.min(min, other.min);
+		max = (short) Math.max(max, other.max);
+		for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+			histogram[i] += other.histogram[i];
+		}
+		for (int z = 0; z < sliceMin.length; z++) {
+			sliceMin[z] = (short) Math.min(sliceMin[z], other.sliceMin[z]);
+			sliceMax[z] = (short) Math.max(sliceMax[z], other.sliceMax[z]);
+			sliceNonZero[z] += other.sliceNonZero[z];
+			sliceHash[z] ^= other.sliceHash[z];
+		}
+	}
+
+	// Number of voxels with the following value
+	public long getCount(short value) {
+		return histogram[value - Short.MIN_VALUE];
+	}
+
+	// Number of voxels in the volume
+	public long getVoxelCount() {
+		long result = 0;
+		for (long count : histogram) {
+			result += count;
+		}
+		return result;
+	}
+
+	// Finds the smallest value which is bigger than or equal to the following part (0 - 1) of the voxels
+	public short findPercentile(double part) {
+		long required = (long) Math.ceil(part * getVoxelCount());
+		long counted = 0;
+
+		for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+			counted += histogram[i];
+			if (counted >= required && counted > 0) {
+				return (short) (i + Short.MIN_VALUE);
+			}
+		}
+		return max;
+	}
+
+	// Hash of the whole volume content found from the hashes of the slices
+	public long getContentHash() {
+		long hash = FNV_OFFSET;
+		for (long slice : sliceHash) {
+			hash = (hash ^ slice) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	// Checks if every voxel of the Z slice is zero
+	public boolean isSliceEmpty(int slice) {
+		return sliceNonZero[slice] == 0;
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public short getMin() {
+		return min;
+	}
+
+	public short getMax() {
+		return max;
+	}
+
+	public short getSliceMin(int slice) {
+		return sliceMin[slice];
+	}
+
+	public short getSliceMax(int slice) {
+		return sliceMax[slice];
+	}
+
+	public int getSliceNonZero(int slice) {
+		return sliceNonZero[slice];
+	}
+
+	public int getSizeZ() {
+		return sliceMin.length;
+	}
+}
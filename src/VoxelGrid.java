@@ -0,0 +1,161 @@
+/**
+ * Class which stores 3D volume data in one contiguous array. By default X is
+ * the fastest changing axis, then Y and then Z, which is the same order as the
+ * elements are stored in the volume data files. Optionally the voxels can be
+ * stored brick by brick (see VoxelLayout), then slices and rays along every
+ * axis touch memory in the same way
+ *
+ * @author s0s100
+ *
+ */
+
+public class VoxelGrid implements VolumeSource {
+	private final int sizeX, sizeY, sizeZ; // Length of every axis
+	private final VoxelLayout layout; // Position of every element in the voxel array
+	private final short[] voxels; // All elements of the volume
+
+	// Constructor which allocates an empty grid of the following size with linear layout
+	public VoxelGrid(int sizeX, int sizeY, int sizeZ) {
+		this(VoxelLayout.linear(sizeX, sizeY, sizeZ));
+	}
+
+	// Constructor which allocates an empty grid with the following layout
+	public VoxelGrid(VoxelLayout layout) {
+		this.layout = layout;
+		sizeX = layout.getSizeX();
+		sizeY = layout.getSizeY();
+		sizeZ = layout.getSizeZ();
+		voxels = new short[layout.getCapacity()];
+	}
+
+	// Finds position of the element in the voxel array
+	public int index(int x, int y, int z) {
+		return layout.index(x, y, z);
+	}
+
+	// Gets the element at the following position
+	@Override
+	public short get(int x, int y, int z) {
+		return voxels[layout.index(x, y, z)];
+	}
+
+	// Sets the element at the following position
+	public void set(int x, int y, int z, short value) {
+		voxels[layout.index(x, y, z)] = value;
+	}
+
+	// Copies X row with the following Y and Z coordinates
+	@Override
+	public void copyRow(int y, int z, short[] destination, int offset) {
+		int run = layout.getRowRun();
+		for (int x = 0; x < sizeX; x += run) {
+			System.arraycopy(voxels, layout.index(x, y, z), destination, offset + x, Math.min(run, sizeX - x));
+		}
+	}
+
+	// Sets X row with the following Y and Z coordinates
+	public void setRow(int y, int z, short[] source, int offset) {
+		setRowPart(0, y, z, source, offset, sizeX);
+	}
+
+	// Sets 'length' elements of X row starting from 'x0'
+	public void setRowPart(int x0, int y, int z, short[] source, int offset, int length) {
+		int run = layout.getRowRun();
+		int x = x0;
+
+		// Copy every piece of the row which is stored together
+		while (x < x0 + length) {
+			int count = Math.min(run - x % run, x0 + length - x);
+			System.arraycopy(source, offset + x - x0, voxels, layout.index(x, y, z), count);
+			x += count;
+		}
+	}
+
+	// Copies Z slices from 'fromZ' (inclusive) to 'toZ' (exclusive), every slice is stored as X rows
+	public void copySlab(int fromZ, int toZ, short[] destination, int offset) {
+		if (!layout.isBricked()) {
+			System.arraycopy(voxels, layout.index(0, 0, fromZ), destination, offset, (toZ - fromZ) * sizeX * sizeY);
+			return;
+		}
+
+		for (int k = fromZ; k < toZ; k++) {
+			for (int j = 0; j < sizeY; j++) {
+				copyRow(j, k, destination, offset);
+				offset += sizeX;
+			}
+		}
+	}
+
+	// Sets Z slices starting from 'fromZ', every slice is stored as X rows
+	public void setSlab(int fromZ, int toZ, short[] source, int offset) {
+		if (!layout.isBricked()) {
+			System.arraycopy(source, offset, voxels, layout.index(0, 0, fromZ), (toZ - fromZ) * sizeX * sizeY);
+			return;
+		}
+
+		for (int k = fromZ; k < toZ; k++) {
+			for (int j = 0; j < sizeY; j++) {
+				setRow(j, k, source, offset);
+				offset += sizeX;
+			}
+		}
+	}
+
+	// Copies slice which is perpendicular to the axis. Result is stored row by row with getSliceWidth elements in every row
+	@Override
+	public void copySlice(SliceWay sliceWay, int index, short[] destination) {
+		int position = 0;
+
+		switch (sliceWay) {
+		case X_AXIS: {
+			// Image (y, z), every element is in a different row
+			for (int k = 0; k < sizeZ; k++) {
+				for (int j = 0; j < sizeY; j++) {
+					destination[position++] = voxels[layout.index(index, j, k)];
+				}
+			}
+			break;
+		}
+		case Y_AXIS: {
+			// Image (x, z), every image row is a row of the grid
+			for (int k = 0; k < sizeZ; k++) {
+				copyRow(index, k, destination, position);
+				position += sizeX;
+			}
+			break;
+		}
+		case Z_AXIS: {
+			// Image (x, y), the whole image is one Z slice
+			copySlab(index, index + 1, destination, 0);
+			break;
+		}
+		}
+	}
+
+	/*
+	 * Getters
+	 */
+
+	@Override
+	public int getSizeX() {
+		return sizeX;
+	}
+
+	@Override
+	public int getSizeY() {
+		return sizeY;
+	}
+
+	@Override
+	public int getSizeZ() {
+		return sizeZ;
+	}
+
+	public VoxelLayout getLayout() {
+		return layout;
+	}
+
+	public short[] getVoxels() {
+		return voxels;
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Class which finds the position of a voxel in a flat array. Linear layout
+ * stores X rows one after another. Bricked layout splits the volume into cubes
+ * (bricks) with power of two side and stores every brick in one piece, so
+ * neighbour voxels along any axis are close to each other in memory
+ *
+ * @author s0s100
+ *
+ */
+
+public final class VoxelLayout {
+	public static final int MAX_CAPACITY = Integer.MAX_VALUE - 8; // Longest array which can be allocated
+
+	private final int sizeX, sizeY, sizeZ; // Length of every axis
+	private final boolean bricked; // Whether the voxels are stored brick by brick
+	private final int brickShift; // Brick side is 2 to the power of brickShift
+	private final int brickMask; // Mask to find the position inside the brick
+	private final int bricksX, bricksY, bricksZ; // Number of bricks along every axis
+	private final int strideY, strideZ; // Linear layout: distance between neighbour elements in Y and Z directions
+	private final int capacity; // Length of the array required to store the volume
+
+	private VoxelLayout(int sizeX, int sizeY, int sizeZ, int brickSize) {
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.bricked = brickSize > 0;
+
+		if (bricked) {
+			if (Integer.bitCount(brickSize) != 1) {
+				throw new IllegalArgumentException("Brick size should be a power of two: " + brickSize);
+			}
+			brickShift = Integer.numberOfTrailingZeros(brickSize);
+			brickMask = brickSize - 1;
+			bricksX = (sizeX + brickMask) >> brickShift;
+			bricksY = (sizeY + brickMask) >> brickShift;
+			bricksZ = (sizeZ + brickMask) >> brickShift;
+			strideY = 0;
+			strideZ = 0;
+			capacity = checkCapacity(sizeX, sizeY, sizeZ, brickSize);
+		} else {
+			brickShift = 0;
+			brickMask = 0;
+			bricksX = 1;
+			bricksY = 1;
+			bricksZ = 1;
+			strideY = sizeX;
+			strideZ = sizeX * sizeY;
+			capacity = checkCapacity(sizeX, sizeY, sizeZ, 0);
+		}
+	}
+
+	// Length of the array required to store the volume, bricked if the brick size is positive. It is found in
+	// long, so it can be larger than MAX_CAPACITY
+	public static long findCapacity(int sizeX, int sizeY, int sizeZ, int brickSize) {
+		if (brickSize <= 0) {
+			return (long) sizeX * sizeY * sizeZ;
+		}
+		long bricks = (long) ((sizeX + brickSize - 1) / brickSize) * ((sizeY + brickSize - 1) / brickSize)
+				* ((sizeZ + brickSize - 1) / brickSize);
+		return bricks * brickSize * brickSize * brickSize;
+	}
+
+	// Finds the capacity and checks if it fits into one array
+	private static int checkCapacity(int sizeX, int sizeY, int sizeZ, int brickSize) {
+		long result = findCapacity(sizeX, sizeY, sizeZ, brickSize);
+		if (result > MAX_CAPACITY) {
+			throw new IllegalArgumentException(
+					String.format("Volume %dx%dx%d is too big for one array", sizeX, sizeY, sizeZ));
+		}
+		return (int) result;
+	}
+
+	// Creates layout where X rows are stored one after another
+	public static VoxelLayout linear(int sizeX, int sizeY, int sizeZ) {
+		return new VoxelLayout(sizeX, sizeY, sizeZ, 0);
+	}
+
+	// Creates layout where bricks with the following side are stored one after another
+	public static VoxelLayout bricked(int sizeX, int sizeY, int sizeZ, int brickSize) {
+		return new VoxelLayout(sizeX, sizeY, sizeZ, brickSize);
+	}
+
+	// Finds position of the element in the array
+	public int index(int x, int y, int z) {
+		if (!bricked) {
+			return x + y * strideY + z * strideZ;
+		}
+
+		// Position of the brick and then position inside the brick
+		int brick = ((z >> brickShift) * bricksY + (y >> brickShift)) * bricksX + (x >> brickShift);
+		int inside = ((((z & brickMask) << brickShift) | (y & brickMask)) << brickShift) | (x & brickMask);
+		return (brick << (3 * brickShift)) | inside;
+	}
+
+	// Number of elements which are stored together in one piece along X (the whole row or the brick row)
+	public int getRowRun() {
+		return bricked ? 1 << brickShift : sizeX;
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public int getSizeX() {
+		return sizeX;
+	}
+
+	public int getSizeY() {
+		return sizeY;
+	}
+
+	public int getSizeZ() {
+		return sizeZ;
+	}
+
+	public boolean isBricked() {
+		return bricked;
+	}
+
+	public int getBrickSize() {
+		return bricked ? 1 << brickShift : 0;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,77 @@
+import java.util.Arrays;
+
+/**
+ * Window / level contrast setting of the gray scale slice images. Values from
+ * the window are mapped linearly from black to white, values below it are
+ * black and values above it are white. The color of every 16 bit value is
+ * found once and kept in a lookup table, so a slice image is made with one
+ * table read per pixel
+ *
+ * @author s0s100
+ *
+ */
+
+public class WindowLevel {
+	private static final int TABLE_SIZE = 1 << 16; // Every possible short value
+
+	private final int center; // Value in the middle of the window (level)
+	private final int width; // Number of values in the window
+	private final int[] table; // ARGB color of every value, value + 32768 is the position
+
+	// Constructor which creates the window with the following center and width
+	public WindowLevel(int center, int width) {
+		this.center = center;
+		this.width = Math.max(1, width);
+		table = new int[TABLE_SIZE];
+
+		// Only values inside the window are calculated, the others are black or white
+		int low = center - this.width / 2; // Value which is shown as black
+		int from = Math.max(0, Math.min(TABLE_SIZE, low - Short.MIN_VALUE));
+		int to = Math.max(from, Math.min(TABLE_SIZE, low + this.width - Short.MIN_VALUE));
+		float colorNum;
+
+		Arrays.fill(table, 0, from, PixelBuffer.BLACK);
+		for (int i = from; i < to; i++) {
+			colorNum = (float) (i + Short.MIN_VALUE - low) / this.width;
+			table[i] = PixelBuffer.gray(colorNum);
+		}
+		Arrays.fill(table, to, TABLE_SIZE, PixelBuffer.WHITE);
+	}
+
+	// Window which shows every value from min (black) to max (white)
+	public static WindowLevel ofRange(short min, short max) {
+		int width = Math.max(1, max - min); // Volume with one value would be divided by zero
+		return new WindowLevel(min + width / 2, width);
+	}
+
+	// Window moved by 'dCenter' and widened by 'dWidth'
+	public WindowLevel adjust(int dCenter, int dWidth) {
+		return new WindowLevel(center + dCenter, width + dWidth);
+	}
+
+	// Color of the following value
+	public int getArgb(short value) {
+		return table[value - Short.MIN_VALUE];
+	}
+
+	/*
+	 * Getters
+	 */
+
+	public int getCenter() {
+		return center;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int[] getTable() {
+		return table;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Window %d, level %d", width, center);
+	}
+}
@@ -0,0 +1,128 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javafx.scene.paint.Color;
+
+/**
+ * Checks that the drag frames of GradientRenderer reuse the working volumes
+ * and the frame buffers, so rotating the view allocates almost nothing. Bytes
+ * allocated by every thread are measured around the frames after the warm-up,
+ * the volume is a synthetic head (skin, skull and brain spheres)
+ *
+ * @author s0s100
+ *
+ */
+
+public class GradientRendererAllocationTest {
+	private static final int WARM_UP_FRAMES = 10; // Frames which allocate the buffers and compile the code
+	private static final int FRAMES = 20; // Measured frames
+	private static final long MAX_FRAME_BYTES = 64 * 1024; // Allowed allocation of one frame, a frame buffer is 256 KB
+
+	private static File directory; // Directory of the synthetic volume
+	private static VolumeData data; // Synthetic volume
+
+	// Writes the synthetic volume as a MetaImage file and reads it
+	@BeforeClass
+	public static void createVolume() throws IOException {
+		int sizeX = 128, sizeY = 128, sizeZ = 64;
+		ByteBuffer voxels = ByteBuffer.allocate(sizeX * sizeY * sizeZ * 2).order(ByteOrder.LITTLE_ENDIAN);
+		Random random = new Random(5);
+		for (int z = 0; z < sizeZ; z++) {
+			for (int y = 0; y < sizeY; y++) {
+				for (int x = 0; x < sizeX; x++) {
+					double dx = x - sizeX / 2, dy = y - sizeY / 2, dz = (z - sizeZ / 2) * 2;
+					double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+					int value;
+					if (distance > 50) {
+						value = -1000 + random.nextInt(40);
+					} else if (distance > 46) {
+						value = 10 + random.nextInt(30);
+					} else if (distance > 40) {
+						value = 900 + random.nextInt(400);
+					} else {
+						value = 100 + random.nextInt(100);
+					}
+					voxels.putShort((short) value);
+				}
+			}
+		}
+
+		directory = Files.createTempDirectory("gradient-renderer").toFile();
+		Files.write(new File(directory, "head.raw").toPath(), voxels.array());
+		Files.write(new File(directory, "head.mhd").toPath(),
+				String.format("NDims = 3%nDimSize = %d %d %d%nElementType = MET_SHORT%nElementDataFile = head.raw%n",
+						sizeX, sizeY, sizeZ).getBytes("US-ASCII"));
+
+		data = new VolumeData();
+		data.setCacheDirectory(null);
+		data.readData(new File(directory, "head.mhd").getPath());
+	}
+
+	// Removes the synthetic volume
+	@AfterClass
+	public static void deleteVolume() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void splatFramesReuseBuffers() {
+		checkFrames(false);
+	}
+
+	@Test
+	public void rayFramesReuseBuffers() {
+		checkFrames(true);
+	}
+
+	// Renders the drag frames of both levels and checks the bytes allocated by one frame
+	private static void checkFrames(boolean rayCasting) {
+		GradientRenderer renderer = new GradientRenderer(data, 0, Color.WHITE);
+		renderer.setRayCasting(rayCasting);
+
+		for (int level = 0; level <= 1; level++) {
+			renderer.setLevel(level);
+			for (int frame = 0; frame < WARM_UP_FRAMES; frame++) {
+				renderer.changePointOfView(7, 3);
+				renderer.renderImage();
+			}
+
+			long start = getAllocatedBytes();
+			for (int frame = 0; frame < FRAMES; frame++) {
+				renderer.changePointOfView(17, 11);
+				renderer.renderImage();
+			}
+			long frameBytes = (getAllocatedBytes() - start) / FRAMES;
+
+			assertTrue(String.format("Level %d frame allocates %d bytes", level, frameBytes),
+					frameBytes <= MAX_FRAME_BYTES);
+		}
+	}
+
+	// Bytes allocated by every live thread, the frames are rendered by the common fork-join pool too
+	private static long getAllocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long result = 0;
+		for (long id : threads.getAllThreadIds()) {
+			long bytes = threads.getThreadAllocatedBytes(id);
+			if (bytes > 0) {
+				result += bytes;
+			}
+		}
+		return result;
+	}
+}